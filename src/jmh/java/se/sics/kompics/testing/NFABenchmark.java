@@ -0,0 +1,229 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.sics.kompics.ComponentDefinition;
+import se.sics.kompics.Init;
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.Negative;
+import se.sics.kompics.Port;
+import se.sics.kompics.PortType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds a synthetic stream of received events straight into an {@link NFA},
+ * one event per operation, so the reported throughput is events/sec and the
+ * normalized allocation rate of the gc profiler is bytes per event.
+ *
+ * Every shape runs inside a kleene block so the stream can be replayed indefinitely.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NFABenchmark {
+
+  // nesting depth of repeat blocks, either/or branches, unordered set size
+  // or number of allow, drop and disallow entries each
+  @Param({"1", "4", "16", "64"})
+  int size;
+
+  @Param({"REPEAT", "EITHER", "UNORDERED", "FILTERS"})
+  Shape shape;
+
+  // 0 runs the plain NFA, otherwise compiled mode with the given cache size
+  @Param({"0", "1024"})
+  int transitionCacheSize;
+
+  private TestContext<BenchComponent> tc;
+  private Port<BenchPort> port;
+  private NFA nfa;
+  private EventSpec[] stream;
+  private int cursor;
+
+  public enum Shape { REPEAT, EITHER, UNORDERED, FILTERS }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    tc = TestContext.newTestContext(BenchComponent.class, Init.NONE);
+    port = tc.getComponentUnderTest().getPositive(BenchPort.class);
+    List<EventSpec> events = new ArrayList<EventSpec>();
+    nfa = build(events);
+    if (transitionCacheSize > 0) {
+      nfa.setTransitionCacheSize(transitionCacheSize);
+    }
+    nfa.build();
+    nfa.startRun();
+    stream = events.toArray(new EventSpec[events.size()]);
+
+    // make sure the stream is accepted before measuring it
+    for (int i = 0; i < 2 * stream.length; i++) {
+      if (!transition()) {
+        throw new IllegalStateException(shape + " specification did not accept " + stream[cursor]);
+      }
+    }
+    cursor = 0;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    // nothing is specified, this only shuts down the scheduler
+    tc.check();
+  }
+
+  @Benchmark
+  public boolean transition() {
+    EventSpec receivedSpec = stream[cursor];
+    if (++cursor == stream.length) {
+      cursor = 0;
+    }
+    nfa.tryInternalEventTransitions();
+    return nfa.doTransition(receivedSpec);
+  }
+
+  private NFA build(List<EventSpec> events) {
+    Block main = new Block();
+    NFA table = new NFA(main);
+    Block loop = new Block(main, Block.STAR);
+    table.addRepeat(Block.STAR, loop);
+    switch (shape) {
+      case REPEAT:
+        Block current = loop;
+        for (int i = 0; i < size; i++) {
+          current = new Block(current, 2);
+          table.addRepeat(2, current);
+        }
+        table.addSpec(spec(0));
+        for (int i = 0; i < size; i++) {
+          table.endRepeat();
+        }
+        events.add(received(0));
+        break;
+      case EITHER:
+        // either may not be the first statement of a block and takes exactly
+        // two branches, so the fan-out is a chain of nested either blocks
+        table.addSpec(spec(0));
+        for (int i = 1; i < size; i++) {
+          table.either(loop);
+          table.addSpec(spec(i));
+          table.or();
+        }
+        table.addSpec(spec(size));
+        for (int i = 1; i < size; i++) {
+          table.endRepeat();
+        }
+        for (int i = 1; i <= size; i++) {
+          events.add(received(0));
+          events.add(received(i));
+        }
+        break;
+      case UNORDERED:
+        List<SingleEventSpec> expected = new ArrayList<SingleEventSpec>();
+        for (int i = 0; i < size; i++) {
+          expected.add(spec(i));
+        }
+        table.addSpec(new UnorderedSpec(expected));
+        // worst case for a linear scan, always match the last pending spec
+        for (int i = size - 1; i >= 0; i--) {
+          events.add(received(i));
+        }
+        break;
+      case FILTERS:
+        for (int i = 1; i <= size; i++) {
+          loop.addAllowedMessage(spec(i));
+          loop.addDroppedMessage(spec(size + i));
+          loop.addDisallowedMessage(spec(2 * size + i));
+        }
+        table.addSpec(spec(0));
+        for (int i = 1; i <= size; i++) {
+          events.add(received(0));
+          events.add(received(i));
+          events.add(received(size + i));
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("unknown shape " + shape);
+    }
+    table.endRepeat();
+    return table;
+  }
+
+  private EventSpec spec(int id) {
+    return EventSpec.create(null, new BenchEvent(id), port, Direction.OUT);
+  }
+
+  private EventSpec received(int id) {
+    EventSpec receivedSpec = spec(id);
+    receivedSpec.setHandler(ProxyHandler.faultHandler);
+    return receivedSpec;
+  }
+
+  public static class BenchEvent implements KompicsEvent {
+    final int id;
+
+    BenchEvent(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof BenchEvent && ((BenchEvent) o).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+      return id;
+    }
+
+    @Override
+    public String toString() {
+      return "BenchEvent<" + id + ">";
+    }
+  }
+
+  public static class BenchPort extends PortType {
+    {
+      indication(BenchEvent.class);
+    }
+  }
+
+  public static class BenchComponent extends ComponentDefinition {
+    Negative<BenchPort> port = provides(BenchPort.class);
+  }
+}
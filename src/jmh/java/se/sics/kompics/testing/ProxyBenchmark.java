@@ -0,0 +1,317 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import com.google.common.base.Predicates;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.sics.kompics.Component;
+import se.sics.kompics.ComponentDefinition;
+import se.sics.kompics.Handler;
+import se.sics.kompics.Init;
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.Kompics;
+import se.sics.kompics.Negative;
+import se.sics.kompics.Positive;
+import se.sics.kompics.PortType;
+import se.sics.kompics.Start;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ping-pong between two components connected either by a plain two way
+ * channel or through a {@link TestContext} watching every ping and pong of the
+ * ponger (the component under test).
+ *
+ * {@code roundTrip} samples the latency of single round trips (two hops, the ping
+ * and its pong), so the percentiles reported by JMH are per round trip.
+ * {@code throughput} keeps {@value #WINDOW} pings in flight and reports round trips/sec.
+ * Pings and pongs carry the time they were sent, so the latency of each hop is
+ * recorded as well and its percentiles are reported as secondary results by {@link HopLatencies}.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyBenchmark {
+
+  static final int WINDOW = 1024;
+  private static final long START_TIMEOUT_MS = 10000;
+  // pongs missing for this long mean the intercepted specification failed
+  private static final long WAIT_TIMEOUT_MS = 10000;
+
+  @Param({"DIRECT", "INTERCEPTED"})
+  Wiring wiring;
+
+  private final Driver driver = new Driver();
+  private Thread checkThread;
+  private volatile boolean checkResult;
+
+  public enum Wiring { DIRECT, INTERCEPTED }
+
+  @Setup(Level.Trial)
+  public void setup() throws InterruptedException {
+    if (wiring == Wiring.DIRECT) {
+      Kompics.createAndStart(DirectRoot.class, new DirectRootInit(driver), 1);
+    } else {
+      startTestContext();
+    }
+    if (!driver.started.await(START_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+      throw new IllegalStateException("pinger was not started");
+    }
+  }
+
+  private void startTestContext() {
+    final TestContext<BenchPonger> tc = TestContext.newTestContext(BenchPonger.class, Init.NONE);
+    Component pinger = tc.create(BenchPinger.class, new PingerInit(driver));
+    Positive<BenchPort> pongerPort = tc.getComponentUnderTest().getPositive(BenchPort.class);
+    // iterations may be far apart, so only the stop event ends the test.
+    // throughput keeps many pings in flight, so pings and pongs may interleave in any order
+    tc.setTimeout(TimeUnit.HOURS.toMillis(1))
+      .connect(pinger.getNegative(BenchPort.class), pongerPort)
+      .body()
+        .repeat()
+        .body()
+          .either()
+            .expect(BenchPing.class, Predicates.<BenchPing>alwaysTrue(), pongerPort, Direction.IN)
+          .or()
+            .expect(BenchPong.class, Predicates.<BenchPong>alwaysTrue(), pongerPort, Direction.OUT)
+          .end()
+        .end()
+        .expect(BenchStop.class, Predicates.<BenchStop>alwaysTrue(), pongerPort, Direction.IN);
+
+    checkThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        checkResult = tc.check();
+      }
+    }, "check");
+    checkThread.start();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    if (wiring == Wiring.DIRECT) {
+      Kompics.shutdown();
+    } else {
+      driver.pinger.stop();
+      checkThread.join();
+      if (!checkResult) {
+        throw new IllegalStateException("intercepted ping-pong did not match the specification");
+      }
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public long roundTrip(HopLatencies hops) {
+    return driver.pingAndWait(1);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  @OperationsPerInvocation(WINDOW)
+  public long throughput(HopLatencies hops) {
+    return driver.pingAndWait(WINDOW);
+  }
+
+  /**
+   * Hop latency percentiles of an iteration in microseconds, read by JMH once the iteration ended.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class HopLatencies {
+    private LatencyHistogram pingHops;
+    private LatencyHistogram pongHops;
+
+    @Setup(Level.Iteration)
+    public void reset(ProxyBenchmark benchmark) {
+      pingHops = benchmark.driver.pingHops;
+      pongHops = benchmark.driver.pongHops;
+      pingHops.reset();
+      pongHops.reset();
+    }
+
+    public double pingHopP50() {
+      return micros(pingHops, 50);
+    }
+
+    public double pingHopP99() {
+      return micros(pingHops, 99);
+    }
+
+    public double pongHopP50() {
+      return micros(pongHops, 50);
+    }
+
+    public double pongHopP99() {
+      return micros(pongHops, 99);
+    }
+
+    private static double micros(LatencyHistogram histogram, double percentile) {
+      return histogram.getValueAtPercentile(percentile) / 1e3;
+    }
+  }
+
+  static class Driver {
+    final CountDownLatch started = new CountDownLatch(1);
+    volatile BenchPinger pinger;
+    // only recorded by the pinger, read once the pongs of an iteration arrived
+    final LatencyHistogram pingHops = new LatencyHistogram();
+    final LatencyHistogram pongHops = new LatencyHistogram();
+
+    long pingAndWait(int pings) {
+      long target = pinger.pongs.get() + pings;
+      pinger.ping(pings);
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_TIMEOUT_MS);
+      while (pinger.pongs.get() < target) {
+        if (System.nanoTime() - deadline > 0) {
+          throw new IllegalStateException((target - pinger.pongs.get()) + " pongs were not received within " +
+              WAIT_TIMEOUT_MS + "ms");
+        }
+        Thread.yield();
+      }
+      return target;
+    }
+  }
+
+  public static class BenchPing implements KompicsEvent {
+    final long sentNanos = System.nanoTime();
+  }
+
+  public static class BenchPong implements KompicsEvent {
+    final long pingSentNanos;
+    final long sentNanos = System.nanoTime();
+
+    BenchPong(long pingSentNanos) {
+      this.pingSentNanos = pingSentNanos;
+    }
+  }
+
+  public static class BenchStop implements KompicsEvent { }
+
+  public static class BenchPort extends PortType {
+    {
+      request(BenchPing.class);
+      request(BenchStop.class);
+      indication(BenchPong.class);
+    }
+  }
+
+  public static class PingerInit extends Init<BenchPinger> {
+    final Driver driver;
+
+    PingerInit(Driver driver) {
+      this.driver = driver;
+    }
+  }
+
+  public static class BenchPinger extends ComponentDefinition {
+    Positive<BenchPort> port = requires(BenchPort.class);
+    final AtomicLong pongs = new AtomicLong();
+    private final Driver driver;
+
+    public BenchPinger(PingerInit init) {
+      driver = init.driver;
+    }
+
+    // called from the benchmark thread
+    void ping(int pings) {
+      for (int i = 0; i < pings; i++) {
+        trigger(new BenchPing(), port);
+      }
+    }
+
+    void stop() {
+      trigger(new BenchStop(), port);
+    }
+
+    Handler<Start> startHandler = new Handler<Start>() {
+      @Override
+      public void handle(Start event) {
+        driver.pinger = BenchPinger.this;
+        driver.started.countDown();
+      }
+    };
+
+    Handler<BenchPong> pongHandler = new Handler<BenchPong>() {
+      @Override
+      public void handle(BenchPong pong) {
+        driver.pingHops.record(pong.sentNanos - pong.pingSentNanos);
+        driver.pongHops.record(System.nanoTime() - pong.sentNanos);
+        pongs.incrementAndGet();
+      }
+    };
+
+    {
+      subscribe(startHandler, control);
+      subscribe(pongHandler, port);
+    }
+  }
+
+  public static class BenchPonger extends ComponentDefinition {
+    Negative<BenchPort> port = provides(BenchPort.class);
+
+    Handler<BenchPing> pingHandler = new Handler<BenchPing>() {
+      @Override
+      public void handle(BenchPing ping) {
+        trigger(new BenchPong(ping.sentNanos), port);
+      }
+    };
+
+    {
+      subscribe(pingHandler, port);
+    }
+  }
+
+  public static class DirectRootInit extends Init<DirectRoot> {
+    final Driver driver;
+
+    DirectRootInit(Driver driver) {
+      this.driver = driver;
+    }
+  }
+
+  public static class DirectRoot extends ComponentDefinition {
+    public DirectRoot(DirectRootInit init) {
+      Component pinger = create(BenchPinger.class, new PingerInit(init.driver));
+      Component ponger = create(BenchPonger.class, Init.NONE);
+      connect(ponger.getPositive(BenchPort.class), pinger.getNegative(BenchPort.class));
+    }
+  }
+}
@@ -20,20 +20,15 @@
  */
 package se.sics.kompics.testing;
 
-import com.google.common.collect.HashMultiset;
-import com.google.common.collect.Multiset;
-
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 
 class Block {
 
   final int times;
   private int startState;
-  private int currentCount;
   static final int STAR = -1;
   private boolean isMainBlock;
 
@@ -41,17 +36,20 @@ class Block {
 
   private BlockInit blockInit;
   final Block previousBlock;
+  // index of the block's progress in a run, assigned when the NFA is built
+  int id;
+
+  // every iteration must complete within this time of its start
+  private long withinNanos;
+  private DeadlineWheel deadlines;
 
-  private boolean currentlyExecuting;
-  private boolean runInit = true;
+  private List<BlockAssertion> assertions = new ArrayList<BlockAssertion>();
 
-  private Set<EventSpec> disallowed;
-  private Set<EventSpec> allowed;
-  private Set<EventSpec> dropped;
+  private SpecMultiset<EventSpec> disallowed;
+  private SpecMultiset<EventSpec> allowed;
+  private SpecMultiset<EventSpec> dropped;
 
   private List<SingleEventSpec> expected = new LinkedList<SingleEventSpec>();
-  private Multiset<SingleEventSpec> pending = HashMultiset.create();
-  private Multiset<SingleEventSpec> received = HashMultiset.create();
 
   enum MODE { HEADER, BODY, UNORDERED, EXPECT_MAPPER, EXPECT_FUTURE, CONDITIONAL}
   MODE mode = MODE.HEADER;
@@ -79,9 +77,9 @@ class Block {
     if (previousBlock == null) {
       initEmptyBlock();
     } else {
-      this.disallowed = new HashSet<EventSpec>(previousBlock.disallowed);
-      this.allowed = new HashSet<EventSpec>(previousBlock.allowed);
-      this.dropped = new HashSet<EventSpec>(previousBlock.dropped);
+      this.disallowed = new SpecMultiset<EventSpec>(previousBlock.disallowed);
+      this.allowed = new SpecMultiset<EventSpec>(previousBlock.allowed);
+      this.dropped = new SpecMultiset<EventSpec>(previousBlock.dropped);
     }
   }
 
@@ -95,148 +93,222 @@ class Block {
     throw new UnsupportedOperationException("deprecate iterinit");
   }
 
-  int getCurrentCount() {
-    return currentCount;
+  void addAssertion(BlockAssertion assertion) {
+    assertions.add(assertion);
   }
 
-  void initialize() {
-    if (!isKleeneBlock && !isOpen()) {
-      currentCount = times;
-    }
+  List<BlockAssertion> getAssertions() {
+    return assertions;
+  }
 
-    if (blockInit != null) {
-      blockInit.init();
-    }
+  void setDeadline(long withinNanos, DeadlineWheel deadlines) {
+    this.withinNanos = withinNanos;
+    this.deadlines = deadlines;
+  }
 
-    currentlyExecuting = true;
-    runInit = false;
+  long getWithinNanos() {
+    return withinNanos;
   }
 
-  void iterationComplete() {
-    //assert isOpen();
-    assert pending.isEmpty();
-    resetBlockEvents();
+  int indexOfFirstState() {
+    return startState + 1;
+  }
 
-    if (!(isKleeneBlock)) {
-      currentCount--;
-      // main block may be decremented multiple times
-      assert isMainBlock || currentCount >= 0;
-    }
-    runInit = true;
+  void expect(SingleEventSpec spec) {
+    expected.add(spec);
   }
 
-  boolean canRunInit() {
-    return runInit;
+  private void initEmptyBlock() {
+    disallowed = new SpecMultiset<EventSpec>();
+    allowed = new SpecMultiset<EventSpec>();
+    dropped = new SpecMultiset<EventSpec>();
   }
 
-  void reset() {
-    if (isMainBlock) {
-      return;
+  void addDisallowedMessage(EventSpec eventSpec) {
+    if (disallowed.add(eventSpec)) {
+      allowed.removeAll(eventSpec);
+      dropped.removeAll(eventSpec);
     }
+  }
 
-    if (isKleeneBlock) {
-      // without explicit end conditions -
-      // kleene blocks only go out of scope when the thread is discontinued by the NFA
-      // close the block to re-enable block init to run later if needed
-      currentlyExecuting = false;
+  void addAllowedMessage(EventSpec eventSpec) {
+    if (allowed.add(eventSpec)) {
+      disallowed.removeAll(eventSpec);
+      dropped.removeAll(eventSpec);
     }
-    resetBlockEvents();
   }
 
-  void close() {
-    if (isMainBlock) {
-      // don't close main block since it cannot be reopened
-      return;
+  void addDroppedMessage(EventSpec eventSpec) {
+    if (dropped.add(eventSpec)) {
+      disallowed.removeAll(eventSpec);
+      allowed.removeAll(eventSpec);
     }
-    assert isOpen(); // block that doesn't do anything at runtime will still be closed
-    currentlyExecuting = false;
   }
 
-  boolean isOpen() {
-    return currentlyExecuting;
+  Collection<SingleEventSpec> getExpectedSpecs() {
+    return expected;
   }
 
-  private void resetBlockEvents() {
-    pending.clear();
-    received.clear();
+  Collection<EventSpec> getAllowedSpecs() {
+    return allowed.specs();
+  }
 
-    for (SingleEventSpec spec : expected) {
-      pending.add(spec);
-    }
+  Collection<EventSpec> getDisallowedSpecs() {
+    return disallowed.specs();
+  }
+  Collection<EventSpec> getDroppedSpecs() {
+    return dropped.specs();
   }
 
-  boolean hasMoreIterations() {
-    return currentCount > 0;
+  boolean isAllowed(EventSpec receivedSpec) {
+    return allowed.contains(receivedSpec);
   }
 
-  int indexOfFirstState() {
-    return startState + 1;
+  boolean isDisallowed(EventSpec receivedSpec) {
+    return disallowed.contains(receivedSpec);
   }
 
-  void expect(SingleEventSpec spec) {
-    expected.add(spec);
-    pending.add(spec);
+  boolean isDropped(EventSpec receivedSpec) {
+    return dropped.contains(receivedSpec);
   }
 
-  boolean handle(EventSpec receivedSpec) {
-    int remaining = pending.count(receivedSpec);
-    if (remaining == 0) {
-      return previousBlock != null && previousBlock.handle(receivedSpec);
+  Progress newProgress(Progress previous) {
+    return new Progress(previous);
+  }
+
+  // counters, pending events and deadline of the block in one run of the specification
+  class Progress {
+    private final Progress previous;
+    private int currentCount;
+    private boolean currentlyExecuting;
+    private boolean runInit = true;
+    private DeadlineWheel.Deadline deadline;
+    private final SpecMultiset<SingleEventSpec> pending = new SpecMultiset<SingleEventSpec>();
+
+    private Progress(Progress previous) {
+      this.previous = previous;
+      resetBlockEvents();
     }
 
-    pending.remove(receivedSpec);
-    TestContext.logger.trace("Event {} will be handled by {}", receivedSpec, status());
-    return true;
-  }
+    Block block() {
+      return Block.this;
+    }
 
-  boolean hasPendingEvents() {
-    return !pending.isEmpty();
-  }
+    int getCurrentCount() {
+      return currentCount;
+    }
 
-  String status() {
-    StringBuilder sb = new StringBuilder("Block[");
-    sb.append(times == STAR? "*" : times).append(" Received").append(received);
-    sb.append(" Pending").append(pending);
-    sb.append("]");
-    return sb.toString();
-  }
+    void initialize() {
+      if (!isKleeneBlock && !isOpen()) {
+        currentCount = times;
+      }
 
-  private void initEmptyBlock() {
-    disallowed = new HashSet<EventSpec>();
-    allowed = new HashSet<EventSpec>();
-    dropped = new HashSet<EventSpec>();
-  }
+      if (blockInit != null) {
+        blockInit.init();
+      }
 
-  void addDisallowedMessage(EventSpec eventSpec) {
-    if (disallowed.add(eventSpec)) {
-      allowed.remove(eventSpec);
-      dropped.remove(eventSpec);
+      currentlyExecuting = true;
+      runInit = false;
+
+      if (deadlines != null && deadline == null) {
+        deadline = deadlines.schedule(this, withinNanos);
+      }
     }
-  }
 
-  void addAllowedMessage(EventSpec eventSpec) {
-    if (allowed.add(eventSpec)) {
-      disallowed.remove(eventSpec);
-      dropped.remove(eventSpec);
+    boolean isCurrentDeadline(DeadlineWheel.Deadline expired) {
+      if (deadline != expired) {
+        return false;
+      }
+      deadline = null;
+      return true;
     }
-  }
 
-  void addDroppedMessage(EventSpec eventSpec) {
-    if (dropped.add(eventSpec)) {
-      disallowed.remove(eventSpec);
-      allowed.remove(eventSpec);
+    private void cancelDeadline() {
+      if (deadline != null) {
+        deadlines.cancel(deadline);
+        deadline = null;
+      }
     }
-  }
 
-  Collection<EventSpec> getAllowedSpecs() {
-    return allowed;
-  }
+    void iterationComplete() {
+      //assert isOpen();
+      assert pending.isEmpty();
+      resetBlockEvents();
+      cancelDeadline();
+
+      if (!(isKleeneBlock)) {
+        currentCount--;
+        // main block may be decremented multiple times
+        assert isMainBlock || currentCount >= 0;
+      }
+      runInit = true;
+    }
 
-  Collection<EventSpec> getDisallowedSpecs() {
-    return disallowed;
-  }
-  Collection<EventSpec> getDroppedSpecs() {
-    return dropped;
+    boolean canRunInit() {
+      return runInit;
+    }
+
+    void reset() {
+      if (isMainBlock) {
+        return;
+      }
+
+      if (isKleeneBlock) {
+        // without explicit end conditions -
+        // kleene blocks only go out of scope when the thread is discontinued by the NFA
+        // close the block to re-enable block init to run later if needed
+        currentlyExecuting = false;
+      }
+      resetBlockEvents();
+      cancelDeadline();
+    }
+
+    void close() {
+      if (isMainBlock) {
+        // don't close main block since it cannot be reopened
+        return;
+      }
+      assert isOpen(); // block that doesn't do anything at runtime will still be closed
+      currentlyExecuting = false;
+    }
+
+    boolean isOpen() {
+      return currentlyExecuting;
+    }
+
+    private void resetBlockEvents() {
+      pending.clear();
+
+      for (SingleEventSpec spec : expected) {
+        pending.add(spec);
+      }
+    }
+
+    boolean hasMoreIterations() {
+      return currentCount > 0;
+    }
+
+    boolean handle(EventSpec receivedSpec) {
+      if (!pending.remove(receivedSpec)) {
+        return previous != null && previous.handle(receivedSpec);
+      }
+
+      if (TestContext.logger.isTraceEnabled()) {
+        TestContext.logger.trace("Event {} will be handled by {}", receivedSpec, status());
+      }
+      return true;
+    }
+
+    boolean hasPendingEvents() {
+      return !pending.isEmpty();
+    }
+
+    String status() {
+      StringBuilder sb = new StringBuilder("Block[");
+      sb.append(times == STAR? "*" : times).append(" Pending").append(pending);
+      sb.append("]");
+      return sb.toString();
+    }
   }
 
   @Override
@@ -28,9 +28,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
 
 import org.slf4j.Logger;
 
@@ -38,10 +41,13 @@ import se.sics.kompics.Component;
 import se.sics.kompics.ComponentCore;
 import se.sics.kompics.ComponentDefinition;
 import se.sics.kompics.Fault;
+import se.sics.kompics.JavaComponent;
 import se.sics.kompics.PortType;
 import se.sics.kompics.Port;
 import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.Scheduler;
 import se.sics.kompics.Start;
+import se.sics.kompics.testing.scheduler.WorkerPoolScheduler;
 
 import static se.sics.kompics.testing.Block.MODE;
 import static se.sics.kompics.testing.Block.MODE.*;
@@ -49,19 +55,39 @@ import static se.sics.kompics.testing.Block.STAR;
 
 class CTRL<T extends ComponentDefinition> {
   static final Logger logger = TestContext.logger;
+  private static final int BATCH_SIZE = 64;
+  private static final long IDLE_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
 
   private final T definitionUnderTest;
   private final EventQueue eventQueue;
+  private final EventSpec[] batch = new EventSpec[BATCH_SIZE];
 
   private boolean STARTED = false;
+  private volatile boolean built = false;
 
   private final ComponentCore proxyComponent;
   private Collection<Component> participants = new HashSet<Component>();
+  private VirtualClock virtualClock;
+  private SimulatedNetwork simulatedNetwork;
+  private Scheduler scheduler;
+  private long inspectTimeoutMS = 5000;
 
   private ExpectMapper expectMapper;
   private ExpectFuture expectFuture;
   private List<SingleEventSpec> expectUnordered = new ArrayList<SingleEventSpec>();
   private ComparatorMap comparators = new ComparatorMap();
+  private Map<Class<? extends KompicsEvent>, Function<? extends KompicsEvent, ?>> keyExtractors =
+      new HashMap<Class<? extends KompicsEvent>, Function<? extends KompicsEvent, ?>>();
+
+  private LatencyTracker latencies;
+  private int maxPendingRequests = LatencyTracker.DEFAULT_MAX_PENDING;
+  private List<LoadGenerator> generators = new ArrayList<LoadGenerator>();
+  // counted on receipt, null unless a rate is expected
+  private Map<EventKey, List<RateAssertion>> rates;
+  // assertions counting each kind of received event, including those on supertypes of its class
+  private final Map<EventKey, List<RateAssertion>> resolvedRates = new HashMap<EventKey, List<RateAssertion>>();
+  // keys of received events, so looking up transitions, steps and rates of an event allocates nothing
+  private final EventKey.Table receivedKeys = new EventKey.Table();
 
   private Block currentBlock = new Block();
 
@@ -76,6 +102,55 @@ class CTRL<T extends ComponentDefinition> {
     this.proxyComponent =  proxy.getComponentCore();
     this.definitionUnderTest = definitionUnderTest;
     previousMode.push(HEADER);
+    eventQueue.setQuiescenceDetector(new QuiescenceDetector(proxyComponent, participants, generators));
+  }
+
+  VirtualClock getVirtualClock() {
+    if (virtualClock == null) {
+      virtualClock = new VirtualClock();
+      eventQueue.setVirtualClock(virtualClock);
+    }
+    return virtualClock;
+  }
+
+  SimulatedNetwork getSimulatedNetwork() {
+    if (simulatedNetwork == null) {
+      simulatedNetwork = new SimulatedNetwork(getVirtualClock());
+    }
+    return simulatedNetwork;
+  }
+
+  void setNetworkModel(NetworkModel model) {
+    checkInInitialHeader();
+    getSimulatedNetwork().setModel(model);
+  }
+
+  void setScheduler(Scheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  void setInspectTimeout(long timeoutMS) {
+    if (timeoutMS < 0) {
+      throw new IllegalArgumentException("Negative timeout");
+    }
+    inspectTimeoutMS = timeoutMS;
+  }
+
+  // wait for the component to finish its pending work before inspecting it
+  boolean awaitIdle(JavaComponent component) {
+    long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(inspectTimeoutMS);
+    if (scheduler instanceof WorkerPoolScheduler) {
+      return ((WorkerPoolScheduler) scheduler).awaitIdle(component, timeoutNanos);
+    }
+    // other schedulers don't signal executed work, poll the work count
+    long deadline = System.nanoTime() + timeoutNanos;
+    while (component.workCount.get() > 0) {
+      if (System.nanoTime() - deadline >= 0) {
+        return false;
+      }
+      LockSupport.parkNanos(IDLE_POLL_NANOS);
+    }
+    return true;
   }
 
   void addParticipant(Component c) {
@@ -134,10 +209,21 @@ class CTRL<T extends ComponentDefinition> {
   }
 
   void setExpectWithMapperMode() {
+    startExpectMapper(ExpectMapper.WHOLE_GROUP);
+  }
+
+  void setExpectWithMapperMode(int window) {
+    if (window <= 0) {
+      throw new IllegalArgumentException("window (" + window + ") must be positive");
+    }
+    startExpectMapper(window);
+  }
+
+  private void startExpectMapper(int window) {
     assertBodyorConditionalMode();
     pushNewMode(EXPECT_MAPPER);
     balancedEnd++;
-    expectMapper = new ExpectMapper(proxyComponent);
+    expectMapper = new ExpectMapper(proxyComponent, window);
   }
 
   <E extends KompicsEvent, R extends KompicsEvent> void setMapperForNext(
@@ -185,6 +271,29 @@ class CTRL<T extends ComponentDefinition> {
     table.addSpec(spec);
   }
 
+  void within(long timeoutMS) {
+    if (timeoutMS <= 0) {
+      throw new IllegalArgumentException("only positive deadlines allowed");
+    }
+    long withinNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMS);
+    if (currentMode == HEADER) {
+      if (currentBlock.previousBlock == null) {
+        throw new IllegalStateException("within is not supported for the main block, use setTimeout");
+      }
+      table.within(currentBlock, withinNanos);
+    } else {
+      assertBodyorConditionalMode();
+      table.within(withinNanos);
+    }
+  }
+
+  void generate(Supplier<? extends KompicsEvent> supplier, Port<? extends PortType> port, LoadProfile profile) {
+    assertBodyorConditionalMode();
+    LoadGenerator generator = new LoadGenerator(supplier, port, profile);
+    generators.add(generator);
+    table.addSpec(new InternalEventSpec(generator));
+  }
+
   void either() {
     assertBodyorConditionalMode();
     pushNewMode(CONDITIONAL);
@@ -269,7 +378,7 @@ class CTRL<T extends ComponentDefinition> {
 
   void inspect(Predicate<T> inspectPredicate) {
     assertBodyorConditionalMode();
-    InternalEventSpec spec = new InternalEventSpec(definitionUnderTest, inspectPredicate);
+    InternalEventSpec spec = new InternalEventSpec(definitionUnderTest, inspectPredicate, this);
     table.addSpec(spec);
   }
 
@@ -279,12 +388,111 @@ class CTRL<T extends ComponentDefinition> {
     comparators.put(eventType, comparator);
   }
 
+  <E extends KompicsEvent> void addKeyExtractor(
+      Class<E> eventType, Function<E, ?> keyExtractor) {
+    checkInInitialHeader();
+    keyExtractors.put(eventType, keyExtractor);
+  }
+
+  <Q extends KompicsEvent, R extends KompicsEvent> void measureLatency(
+      Class<Q> requestType, Function<Q, ?> requestKey, Class<R> responseType, Function<R, ?> responseKey) {
+    checkInInitialHeader();
+    if (latencies == null) {
+      latencies = new LatencyTracker(table);
+      latencies.setMaxPending(maxPendingRequests);
+    }
+    latencies.addPair(requestType, requestKey, responseType, responseKey);
+    table.observe(requestType);
+    table.observe(responseType);
+  }
+
+  void setMaxPendingRequests(int maxPending) {
+    checkInInitialHeader();
+    if (maxPending <= 0) {
+      throw new IllegalArgumentException("number of pending requests (" + maxPending + ") must be positive");
+    }
+    maxPendingRequests = maxPending;
+    if (latencies != null) {
+      latencies.setMaxPending(maxPending);
+    }
+  }
+
+  void expectLatency(Port<? extends PortType> port, Class<? extends KompicsEvent> requestType,
+                     double percentile, long maxNanos) {
+    checkInRepeatHeader();
+    if (latencies == null || !latencies.isMeasured(requestType)) {
+      throw new IllegalStateException("Latency of " + requestType.getSimpleName() + " is not measured");
+    }
+    currentBlock.addAssertion(latencies.newAssertion(port, requestType, percentile, maxNanos));
+  }
+
+  void expectRate(Port<? extends PortType> port, Direction direction,
+                  Class<? extends KompicsEvent> eventType, double minPerSecond) {
+    checkInRepeatHeader();
+    RateAssertion assertion = new RateAssertion(new EventKey(port, direction, eventType), minPerSecond);
+    if (rates == null) {
+      rates = new HashMap<EventKey, List<RateAssertion>>();
+    }
+    List<RateAssertion> assertions = rates.get(assertion.key);
+    if (assertions == null) {
+      assertions = new ArrayList<RateAssertion>(1);
+      rates.put(assertion.key, assertions);
+    }
+    assertions.add(assertion);
+    currentBlock.addAssertion(assertion);
+    table.observe(eventType);
+  }
+
+  private void checkInRepeatHeader() {
+    assertMode(HEADER);
+    if (currentBlock.previousBlock == null || currentBlock.times == STAR) {
+      throw new IllegalStateException("Block assertions are only supported in the header of repeat(count) blocks");
+    }
+  }
+
+  LatencyHistogram getLatencyHistogram(Port<? extends PortType> port, Class<? extends KompicsEvent> requestType) {
+    if (latencies == null || !latencies.isMeasured(requestType)) {
+      throw new IllegalStateException("Latency of " + requestType.getSimpleName() + " is not measured");
+    }
+    return latencies.getHistogram(port, requestType);
+  }
+
+  long getUnansweredRequests(Port<? extends PortType> port, Class<? extends KompicsEvent> requestType) {
+    if (latencies == null || !latencies.isMeasured(requestType)) {
+      throw new IllegalStateException("Latency of " + requestType.getSimpleName() + " is not measured");
+    }
+    return latencies.getUnanswered(port, requestType);
+  }
+
   <E extends KompicsEvent> void setDefaultAction(
       Class<E> eventType, Function<E, Action> function) {
     checkInInitialHeader();
     table.setDefaultAction(eventType, function);
   }
 
+  <E extends KompicsEvent> void setDefaultAction(Class<E> eventType, Action action) {
+    checkInInitialHeader();
+    table.setDefaultAction(eventType, action);
+  }
+
+  void setSoakMode(int traceSize) {
+    checkInInitialHeader();
+    table.setSoakMode(traceSize);
+  }
+
+  FlightRecorder getFlightRecorder() {
+    return table.getFlightRecorder();
+  }
+
+  DFACache<?> getTransitionCache() {
+    return table.getTransitionCache();
+  }
+
+  void setTransitionCacheSize(int capacity) {
+    checkInInitialHeader();
+    table.setTransitionCacheSize(capacity);
+  }
+
   void checkInInitialHeader() {
     assertMode(HEADER);
     if (currentBlock.previousBlock != null) {
@@ -293,37 +501,183 @@ class CTRL<T extends ComponentDefinition> {
   }
 
   boolean start() {
+    return start(1);
+  }
+
+  // the specification is built once, every run after the first starts over from its initial state
+  boolean start(int runs) {
+    if (runs <= 0) {
+      throw new IllegalArgumentException("number of runs (" + runs + ") must be positive");
+    }
     if (!STARTED) {
       if (balancedEnd != 0) {
         throw new IllegalStateException("Unbalanced block");
       }
       STARTED = true;
       runStartState();
-      return run();
+      try {
+        build();
+        for (int i = 0; i < runs; i++) {
+          if (i > 0) {
+            discardPreviousRun();
+          }
+          table.startRun();
+          if (!run()) {
+            table.reportFailure();
+            if (runs > 1) {
+              logger.error("run {} of {} failed", i + 1, runs);
+            }
+            return false;
+          }
+        }
+        return true;
+      } finally {
+        stopGenerators();
+      }
+    }
+    return false;
+  }
+
+  private void build() {
+    table.build();
+    built = true;
+    eventQueue.setDeadlines(table.getDeadlines());
+    eventQueue.bindConsumer();
+  }
+
+  private void discardPreviousRun() {
+    stopGenerators();
+    table.cancelDeadlines();
+    // events left over from the previous run are not matched against the next one,
+    // they are discarded until the components have finished the work of the previous run
+    eventQueue.discardUntilQuiescent();
+  }
+
+  private boolean generatorFailed() {
+    for (LoadGenerator generator : generators) {
+      Throwable failure = generator.getFailure();
+      if (failure != null) {
+        logger.error("{} failed", generator, failure);
+        return true;
+      }
     }
     return false;
   }
 
+  private void stopGenerators() {
+    for (LoadGenerator generator : generators) {
+      generator.stop();
+    }
+  }
+
   <P extends  PortType, E extends KompicsEvent> EventSpec newEventSpec(
       KompicsEvent event, Port<P> port, Direction direction) {
     Comparator<E> c = (Comparator<E>) comparators.get(event.getClass());
-    return EventSpec.create(c, (E) event, port, direction);
+    Function<E, ?> keyExtractor = (Function<E, ?>) keyExtractors.get(event.getClass());
+    return EventSpec.create(c, keyExtractor, (E) event, port, direction);
+  }
+
+  // spec of an event received by the proxy
+  EventSpec newReceivedSpec(KompicsEvent event, Port<? extends PortType> port, Direction direction) {
+    EventSpec eventSpec = newEventSpec(event, port, direction);
+    if (latencies != null) {
+      eventSpec.setTimestamp(System.nanoTime());
+    }
+    return eventSpec;
   }
 
   private boolean run() {
-    table.build();
     while (true) {
       table.tryInternalEventTransitions();
       EventSpec receivedSpec = removeEventFromQueue();
+      if (generatorFailed()) {
+        return false;
+      }
+      if (table.expireDeadlines() > 0) {
+        if (!table.hasLiveThreads()) {
+          return false;
+        }
+        if (receivedSpec == null) {
+          continue; // woke up for the deadline, keep waiting
+        }
+      }
       if (receivedSpec == null && table.isInFinalState()) {
         //logger.debug("final state");
         return true;
       }
-      boolean successful = table.doTransition(receivedSpec);
-      if (!successful && !table.isInFinalState()) {
+      if (!transition(receivedSpec)) {
+        return false;
+      }
+      if (receivedSpec != null && !drainEventQueue()) {
+        return false;
+      }
+    }
+  }
+
+  // feed events that are already queued to the NFA without waiting
+  private boolean drainEventQueue() {
+    int count = eventQueue.drainTo(batch);
+    for (int i = 0; i < count; i++) {
+      EventSpec receivedSpec = batch[i];
+      batch[i] = null;
+      table.tryInternalEventTransitions();
+      if (table.expireDeadlines() > 0 && !table.hasLiveThreads()) {
         return false;
       }
+      if (!transition(receivedSpec)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean transition(EventSpec receivedSpec) {
+    if (receivedSpec != null) {
+      receivedSpec.internKey(receivedKeys);
+      if (latencies != null) {
+        latencies.record(receivedSpec);
+      }
+      if (rates != null) {
+        countRate(receivedSpec);
+      }
+    }
+    boolean successful = table.doTransition(receivedSpec);
+    if (receivedSpec != null) {
+      eventQueue.complete();
+    }
+    return successful || table.isInFinalState();
+  }
+
+  private void countRate(EventSpec receivedSpec) {
+    EventKey receivedKey = receivedSpec.getKey();
+    List<RateAssertion> assertions = resolvedRates.get(receivedKey);
+    if (assertions == null) {
+      assertions = new ArrayList<RateAssertion>(1);
+      for (Map.Entry<EventKey, List<RateAssertion>> entry : rates.entrySet()) {
+        EventKey key = entry.getKey();
+        if (key.direction == receivedKey.direction && key.port.equals(receivedKey.port) &&
+            key.eventType.isAssignableFrom(receivedKey.eventType)) {
+          assertions.addAll(entry.getValue());
+        }
+      }
+      resolvedRates.put(receivedKey, assertions);
+    }
+    for (RateAssertion assertion : assertions) {
+      // only counted while the block of the assertion is executed
+      RateAssertion.Count count = (RateAssertion.Count) table.measurementOf(assertion);
+      if (count != null) {
+        count.increment();
+      }
+    }
+  }
+
+  // action for events that no spec observes or null if the event must be queued.
+  // previously queued events must be completed first to keep the order of events
+  Action passThroughAction(KompicsEvent event) {
+    if (!built || !eventQueue.isIdle()) {
+      return null;
     }
+    return table.passThroughAction(event.getClass());
   }
 
   private void registerSpec(SingleEventSpec spec) {
@@ -440,7 +794,8 @@ class CTRL<T extends ComponentDefinition> {
   }
 
   private EventSpec removeEventFromQueue() {
-    return eventQueue.poll();
+    // no need to wait out the timeout once the test can end and nothing is running
+    return eventQueue.poll(table.isInFinalState());
   }
 
   private class ComparatorMap {
@@ -0,0 +1,156 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lazily built subset construction of an {@link NFA}.
+ * Each node is an interned set of NFA state ids reached from a kernel set of states
+ * and caches, per received {@link EventKey}, the step computed for it together with
+ * the outcomes of the step, which refer to the next node.
+ * Nodes are evicted in least-recently-used order once the number of cached
+ * nodes, steps and outcomes exceeds the configured capacity.
+ */
+class DFACache<V> {
+
+  private final int capacity;
+  private int size;
+  private int nodeIDs;
+  // events whose next node was found in the cache or computed on the NFA, evicted nodes
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  private final LinkedHashMap<BitSet, Node<V>> nodes =
+      new LinkedHashMap<BitSet, Node<V>>(16, 0.75f, true);
+
+  DFACache(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("cache capacity (" + capacity + ") must be positive");
+    }
+    this.capacity = capacity;
+  }
+
+  Node<V> get(BitSet kernel) {
+    return nodes.get(kernel);
+  }
+
+  Node<V> put(BitSet kernel, BitSet states) {
+    Node<V> node = new Node<V>(this, nodeIDs++, states);
+    nodes.put((BitSet) kernel.clone(), node);
+    size++;
+    evict();
+    return node;
+  }
+
+  int size() {
+    return size;
+  }
+
+  void hit() {
+    hits++;
+  }
+
+  void miss() {
+    misses++;
+  }
+
+  long hits() {
+    return hits;
+  }
+
+  long misses() {
+    return misses;
+  }
+
+  long evictions() {
+    return evictions;
+  }
+
+  private void evict() {
+    Iterator<Node<V>> it = nodes.values().iterator();
+    while (size > capacity && it.hasNext()) {
+      Node<V> eldest = it.next();
+      it.remove();
+      size -= 1 + eldest.entries;
+      evictions++;
+      eldest.discard();
+    }
+  }
+
+  static class Node<V> {
+    final int id;
+    // must not be modified once the node is created
+    final BitSet states;
+    private DFACache<V> cache;
+    private final Map<EventKey, V> steps = new HashMap<EventKey, V>();
+    // steps and other entries cached for this node
+    private int entries;
+
+    private Node(DFACache<V> cache, int id, BitSet states) {
+      this.cache = cache;
+      this.id = id;
+      this.states = states;
+    }
+
+    V get(EventKey key) {
+      return steps.get(key);
+    }
+
+    void put(EventKey key, V step) {
+      if (cache == null) {
+        // evicted node - keep serving the current thread without caching
+        return;
+      }
+      if (steps.put(key, step) == null) {
+        addEntry();
+      }
+    }
+
+    void addEntry() {
+      if (cache == null) {
+        return;
+      }
+      entries++;
+      cache.size++;
+      cache.evict();
+    }
+
+    boolean isDiscarded() {
+      return cache == null;
+    }
+
+    private void discard() {
+      cache = null;
+      steps.clear();
+    }
+
+    @Override
+    public String toString() {
+      return "D" + id + states;
+    }
+  }
+}
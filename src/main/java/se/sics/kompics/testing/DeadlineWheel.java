@@ -0,0 +1,165 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel of deadlines, driven by the thread running the test.
+ * Deadlines are hashed by their tick into a fixed number of slots, so scheduling and
+ * cancelling take constant time and advancing the wheel only visits the slots of the
+ * ticks that passed. A slot can hold deadlines of later rounds which are skipped until due.
+ */
+class DeadlineWheel {
+
+  static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final int SLOTS = 256;
+
+  private final Deadline[] slots = new Deadline[SLOTS];
+  private final long startNanos = System.nanoTime();
+  // the slot of this tick is visited again since it can hold deadlines not yet due
+  private long currentTick = 0;
+  private int size = 0;
+  private final List<Deadline> expired = new ArrayList<Deadline>();
+
+  Deadline schedule(Object owner, long timeoutNanos) {
+    long now = System.nanoTime();
+    Deadline deadline = new Deadline(owner, now, now + timeoutNanos);
+    long tick = Math.max(tickOf(deadline.deadlineNanos), currentTick);
+    deadline.slot = (int) (tick & (SLOTS - 1));
+    link(deadline);
+    size++;
+    return deadline;
+  }
+
+  void cancel(Deadline deadline) {
+    if (deadline.slot >= 0) {
+      unlink(deadline);
+      size--;
+    }
+  }
+
+  // drops every pending and expired deadline
+  void clear() {
+    for (int slot = 0; slot < SLOTS; slot++) {
+      while (slots[slot] != null) {
+        unlink(slots[slot]);
+      }
+    }
+    size = 0;
+    expired.clear();
+  }
+
+  boolean isEmpty() {
+    return size == 0 && expired.isEmpty();
+  }
+
+  // moves the deadlines that passed by now to the expired list, true if it is not empty
+  boolean advance(long now) {
+    if (size > 0) {
+      long nowTick = tickOf(now);
+      long from = Math.max(currentTick, nowTick - SLOTS + 1);
+      for (long tick = from; tick <= nowTick; tick++) {
+        expireSlot((int) (tick & (SLOTS - 1)), now);
+      }
+      currentTick = Math.max(currentTick, nowTick);
+    }
+    return !expired.isEmpty();
+  }
+
+  List<Deadline> takeExpired() {
+    List<Deadline> result = new ArrayList<Deadline>(expired);
+    expired.clear();
+    return result;
+  }
+
+  // time until the next slot is due, bounds waiting for events while deadlines are pending
+  long nanosToNextTick(long now) {
+    return TICK_NANOS - (now - startNanos) % TICK_NANOS;
+  }
+
+  private void expireSlot(int slot, long now) {
+    Deadline deadline = slots[slot];
+    while (deadline != null) {
+      Deadline next = deadline.next;
+      if (deadline.deadlineNanos - now <= 0) {
+        unlink(deadline);
+        size--;
+        expired.add(deadline);
+      }
+      deadline = next;
+    }
+  }
+
+  private long tickOf(long nanos) {
+    return (nanos - startNanos) / TICK_NANOS;
+  }
+
+  private void link(Deadline deadline) {
+    Deadline head = slots[deadline.slot];
+    deadline.next = head;
+    if (head != null) {
+      head.previous = deadline;
+    }
+    slots[deadline.slot] = deadline;
+  }
+
+  private void unlink(Deadline deadline) {
+    if (deadline.previous != null) {
+      deadline.previous.next = deadline.next;
+    } else {
+      slots[deadline.slot] = deadline.next;
+    }
+    if (deadline.next != null) {
+      deadline.next.previous = deadline.previous;
+    }
+    deadline.next = null;
+    deadline.previous = null;
+    deadline.slot = -1;
+  }
+
+  static class Deadline {
+    final Object owner;
+    final long armedNanos;
+    final long deadlineNanos;
+
+    private int slot = -1;
+    private Deadline next;
+    private Deadline previous;
+
+    Deadline(Object owner, long armedNanos, long deadlineNanos) {
+      this.owner = owner;
+      this.armedNanos = armedNanos;
+      this.deadlineNanos = deadlineNanos;
+    }
+
+    long timeoutNanos() {
+      return deadlineNanos - armedNanos;
+    }
+
+    // time by which the deadline was missed at the given time
+    String overdue(long now) {
+      return String.format("%.3f ms", (now - deadlineNanos) / 1e6);
+    }
+  }
+}
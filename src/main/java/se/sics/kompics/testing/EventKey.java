@@ -0,0 +1,95 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.Port;
+import se.sics.kompics.PortType;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class EventKey {
+  final Port<? extends PortType> port;
+  final Direction direction;
+  final Class<? extends KompicsEvent> eventType;
+  private final int hash;
+
+  EventKey(Port<? extends PortType> port, Direction direction,
+           Class<? extends KompicsEvent> eventType) {
+    this.port = port;
+    this.direction = direction;
+    this.eventType = eventType;
+
+    int result = 31 * port.hashCode();
+    result = 31 * result + direction.hashCode();
+    result = 31 * result + eventType.hashCode();
+    hash = result;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof EventKey)) {
+      return false;
+    }
+    EventKey other = (EventKey) o;
+    return eventType == other.eventType
+           && direction == other.direction
+           && port.equals(other.port);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return direction + " " + eventType.getSimpleName() + "@" + port;
+  }
+
+  // interned keys of received events, only used by the thread running the test
+  static class Table {
+    private final Map<Port<? extends PortType>, Map<Class<? extends KompicsEvent>, EventKey>> in =
+        new HashMap<Port<? extends PortType>, Map<Class<? extends KompicsEvent>, EventKey>>();
+    private final Map<Port<? extends PortType>, Map<Class<? extends KompicsEvent>, EventKey>> out =
+        new HashMap<Port<? extends PortType>, Map<Class<? extends KompicsEvent>, EventKey>>();
+
+    EventKey get(Port<? extends PortType> port, Direction direction, Class<? extends KompicsEvent> eventType) {
+      Map<Port<? extends PortType>, Map<Class<? extends KompicsEvent>, EventKey>> ports =
+          direction == Direction.IN? in : out;
+      Map<Class<? extends KompicsEvent>, EventKey> keys = ports.get(port);
+      if (keys == null) {
+        keys = new HashMap<Class<? extends KompicsEvent>, EventKey>();
+        ports.put(port, keys);
+      }
+      EventKey key = keys.get(eventType);
+      if (key == null) {
+        key = new EventKey(port, direction, eventType);
+        keys.put(eventType, key);
+      }
+      return key;
+    }
+  }
+}
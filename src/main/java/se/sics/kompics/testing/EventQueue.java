@@ -20,14 +20,50 @@
  */
 package se.sics.kompics.testing;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Bounded multi-producer single-consumer ring buffer of received events.
+ * Producers are the proxy's handlers running on component threads, the consumer
+ * is the thread running the test.
+ * A slot at position p holds an event once its sequence number is p + 1 and is
+ * free for position p + capacity once the consumer has taken the event.
+ */
 class EventQueue {
 
+  static final int DEFAULT_CAPACITY = 1 << 14;
+  // time to wait between checks for quiescence
+  private static final long QUIESCENCE_CHECK_NS = TimeUnit.MILLISECONDS.toNanos(1);
+  // busy waiting attempts before yielding with the spin strategy
+  private static final int SPIN_TRIES = 100;
+  // time a producer parks while the queue is full
+  private static final long PRODUCER_PARK_NS = TimeUnit.MICROSECONDS.toNanos(10);
+
   private long timeoutMS = 400;
-  private final BlockingQueue<EventSpec> q = new LinkedBlockingQueue<EventSpec>();
+  private WaitStrategy waitStrategy = WaitStrategy.PARK;
+  private QuiescenceDetector quiescenceDetector;
+  private VirtualClock virtualClock;
+  private DeadlineWheel deadlines;
+
+  private EventSpec[] buffer;
+  private AtomicLongArray sequences;
+  private int mask;
+  // next position claimed by a producer
+  private final AtomicLong tail = new AtomicLong();
+  // next position taken by the consumer
+  private long head;
+  // number of events whose transitions were completed by the consumer
+  private volatile long completed;
+
+  private volatile Thread consumer;
+  private volatile Thread parkedConsumer;
+
+  EventQueue() {
+    setCapacity(DEFAULT_CAPACITY);
+  }
 
   void setTimeout(long timeout) {
     if (timeout < 0) {
@@ -36,16 +72,213 @@ class EventQueue {
     this.timeoutMS = timeout;
   }
 
+  void setWaitStrategy(WaitStrategy waitStrategy) {
+    this.waitStrategy = waitStrategy;
+  }
+
+  void setCapacity(int capacity) {
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Invalid event queue capacity " + capacity);
+    }
+    if (tail.get() != head) {
+      throw new IllegalStateException("Event queue is not empty");
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    buffer = new EventSpec[size];
+    sequences = new AtomicLongArray(size);
+    mask = size - 1;
+    for (long position = head; position < head + size; position++) {
+      sequences.set((int) position & mask, position);
+    }
+  }
+
+  void setQuiescenceDetector(QuiescenceDetector quiescenceDetector) {
+    this.quiescenceDetector = quiescenceDetector;
+  }
+
+  // advance the clock whenever the system is quiescent
+  void setVirtualClock(VirtualClock virtualClock) {
+    this.virtualClock = virtualClock;
+  }
+
+  // stop waiting for events as soon as a deadline passes
+  void setDeadlines(DeadlineWheel deadlines) {
+    this.deadlines = deadlines;
+  }
+
+  // the calling thread takes events from now on
+  void bindConsumer() {
+    consumer = Thread.currentThread();
+  }
+
   void offer(EventSpec event) {
-    q.offer(event);
+    long position;
+    int index;
+    int attempts = 0;
+    while (true) {
+      position = tail.get();
+      index = (int) position & mask;
+      long available = sequences.get(index) - position;
+      if (available == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          break;
+        }
+      } else if (available < 0) {
+        waitForSpace(attempts++);
+      }
+      // else position was claimed by another producer
+    }
+    buffer[index] = event;
+    // a full volatile write, an ordered write could be reordered after the read of parkedConsumer
+    // and miss a consumer that found the queue empty just before parking
+    sequences.set(index, position + 1);
+
+    Thread waiting = parkedConsumer;
+    if (waiting != null) {
+      LockSupport.unpark(waiting);
+    }
   }
 
   EventSpec poll() {
-    try {
-      return q.poll(timeoutMS, TimeUnit.MILLISECONDS);
-    } catch (InterruptedException e) {
-      e.printStackTrace();
+    return poll(false);
+  }
+
+  // returns null if no event was received within the timeout, a deadline passed or,
+  // if stopOnQuiescence is set, the system became quiescent before then.
+  // otherwise virtual time is advanced while the system is quiescent
+  EventSpec poll(boolean stopOnQuiescence) {
+    EventSpec event = take();
+    if (event != null) {
+      return event;
+    }
+
+    QuiescenceDetector detector = stopOnQuiescence || virtualClock != null? quiescenceDetector : null;
+    if (detector != null) {
+      detector.reset();
+    }
+    long now = System.nanoTime();
+    long deadline = now + TimeUnit.MILLISECONDS.toNanos(timeoutMS);
+    long nextCheck = now;
+    int attempts = 0;
+    while (true) {
+      event = take();
+      if (event != null) {
+        return event;
+      }
+      now = System.nanoTime();
+      if (now - deadline >= 0 || Thread.interrupted()) {
+        return null;
+      }
+      long waitNanos = deadline - now;
+      if (deadlines != null && !deadlines.isEmpty()) {
+        if (deadlines.advance(now)) {
+          return null;
+        }
+        waitNanos = Math.min(waitNanos, deadlines.nanosToNextTick(now));
+      }
+      if (detector != null) {
+        if (now - nextCheck >= 0) {
+          if (detector.isQuiescent() && isEmpty()) {
+            if (stopOnQuiescence) {
+              return null;
+            }
+            if (virtualClock.advance()) {
+              detector.reset();
+              continue;
+            }
+          }
+          nextCheck = now + QUIESCENCE_CHECK_NS;
+        }
+        waitNanos = Math.min(waitNanos, nextCheck - now);
+      }
+      waitForEvent(waitNanos, attempts++);
+    }
+  }
+
+  // takes and completes events until the system is quiescent, for at most the timeout
+  void discardUntilQuiescent() {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMS);
+    while (poll(true) != null) {
+      complete();
+      if (System.nanoTime() - deadline >= 0) {
+        return;
+      }
+    }
+  }
+
+  // the consumer is done with the last event it took
+  void complete() {
+    completed = completed + 1;
+  }
+
+  // true if every offered event was taken and completed
+  boolean isIdle() {
+    return tail.get() == completed;
+  }
+
+  // takes the events already in the queue without waiting, returns the number taken
+  int drainTo(EventSpec[] batch) {
+    int count = 0;
+    EventSpec event;
+    while (count < batch.length && (event = take()) != null) {
+      batch[count++] = event;
+    }
+    return count;
+  }
+
+  private EventSpec take() {
+    int index = (int) head & mask;
+    if (sequences.get(index) != head + 1) {
       return null;
     }
+    EventSpec event = buffer[index];
+    buffer[index] = null;
+    sequences.lazySet(index, head + mask + 1);
+    head++;
+    return event;
+  }
+
+  private boolean isEmpty() {
+    return sequences.get((int) head & mask) != head + 1;
+  }
+
+  private void waitForEvent(long nanos, int attempts) {
+    switch (waitStrategy) {
+      case SPIN:
+        if (attempts < SPIN_TRIES) {
+          break;
+        }
+      case YIELD:
+        Thread.yield();
+        break;
+      default:
+        parkedConsumer = Thread.currentThread();
+        if (isEmpty()) {
+          LockSupport.parkNanos(this, nanos);
+        }
+        parkedConsumer = null;
+    }
+  }
+
+  private void waitForSpace(int attempts) {
+    if (Thread.currentThread() == consumer) {
+      // nothing would ever free space
+      throw new IllegalStateException(String.format(
+          "Event queue capacity (%s) exceeded by events triggered from the test", mask + 1));
+    }
+    switch (waitStrategy) {
+      case SPIN:
+        if (attempts < SPIN_TRIES) {
+          break;
+        }
+      case YIELD:
+        Thread.yield();
+        break;
+      default:
+        LockSupport.parkNanos(this, PRODUCER_PARK_NS);
+    }
   }
 }
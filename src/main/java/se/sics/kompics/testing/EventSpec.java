@@ -20,6 +20,7 @@
  */
 package se.sics.kompics.testing;
 
+import com.google.common.base.Function;
 import se.sics.kompics.KompicsEvent;
 import se.sics.kompics.Port;
 import se.sics.kompics.PortType;
@@ -30,16 +31,27 @@ class EventSpec implements SingleEventSpec{
 
   private final KompicsEvent event;
   private final Comparator<? extends KompicsEvent> comparator;
+  private final Function<? extends KompicsEvent, ?> keyExtractor;
+  private Object eventKey;
   private ProxyHandler handler;
   private final Port<? extends PortType> port;
   private final Direction direction;
+  private EventKey key;
+  // time the proxy received the event, only set while latencies are measured
+  private long timestamp;
 
   <E extends KompicsEvent> EventSpec(E event, Port<? extends PortType> port,
             Direction direction, Comparator<E> comparator) {
+    this(event, port, direction, comparator, null);
+  }
+
+  <E extends KompicsEvent> EventSpec(E event, Port<? extends PortType> port,
+            Direction direction, Comparator<E> comparator, Function<E, ?> keyExtractor) {
     this.port = port;
     this.direction = direction;
     this.event = event;
     this.comparator = comparator;
+    this.keyExtractor = keyExtractor;
   }
 
   static <P extends  PortType, E extends KompicsEvent> EventSpec create(
@@ -47,10 +59,32 @@ class EventSpec implements SingleEventSpec{
     return new EventSpec(event, port, direction, comparator);
   }
 
+  static <P extends  PortType, E extends KompicsEvent> EventSpec create(
+          Comparator<E> comparator, Function<E, ?> keyExtractor, E event, Port<P> port, Direction direction) {
+    return new EventSpec(event, port, direction, comparator, keyExtractor);
+  }
+
   KompicsEvent getEvent() {
     return event;
   }
 
+  @Override
+  public Class<? extends KompicsEvent> getEventType() {
+    return event.getClass();
+  }
+
+  // key identifying the event if a key extractor is registered for its type, otherwise null
+  Object getEventKey() {
+    if (eventKey == null && keyExtractor != null) {
+      eventKey = extractKey(keyExtractor);
+    }
+    return eventKey;
+  }
+
+  private <E extends KompicsEvent> Object extractKey(Function<E, ?> keyExtractor) {
+    return keyExtractor.apply((E) event);
+  }
+
   Port<? extends PortType> getPort() {
     return port;
   }
@@ -59,6 +93,28 @@ class EventSpec implements SingleEventSpec{
     return direction;
   }
 
+  EventKey getKey() {
+    if (key == null) {
+      key = new EventKey(port, direction, event.getClass());
+    }
+    return key;
+  }
+
+  // shares the key of received events of the same port, direction and class
+  void internKey(EventKey.Table keys) {
+    if (key == null) {
+      key = keys.get(port, direction, event.getClass());
+    }
+  }
+
+  long getTimestamp() {
+    return timestamp;
+  }
+
+  void setTimestamp(long timestamp) {
+    this.timestamp = timestamp;
+  }
+
   void setHandler(ProxyHandler handler) {
     this.handler = handler;
   }
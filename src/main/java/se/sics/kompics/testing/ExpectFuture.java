@@ -26,9 +26,16 @@ import se.sics.kompics.Port;
 import se.sics.kompics.PortType;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 class ExpectFuture implements MultiEventSpec{
 
@@ -36,7 +43,13 @@ class ExpectFuture implements MultiEventSpec{
   Map<Future<? extends KompicsEvent, ? extends KompicsEvent>, FutureStruct> futures =
           new HashMap<Future<? extends KompicsEvent, ? extends KompicsEvent>, FutureStruct>();
   private List<FutureStruct> trigger = new ArrayList<FutureStruct>(); // trigger order
-  private int futureIndex = 0;
+
+  // keyed mode: requests are correlated with futures by key and responses are triggered on match.
+  // futures are grouped by event type and by their class, which defines how keys are extracted
+  private boolean keyed;
+  private final Map<List<Class<?>>, KeyGroup> keyGroups = new LinkedHashMap<List<Class<?>>, KeyGroup>();
+  // groups whose event type a received class is an instance of, most specific type first
+  private final Map<Class<?>, List<KeyGroup>> resolvedGroups = new HashMap<Class<?>, List<KeyGroup>>();
 
   private ComponentCore proxyComponent;
 
@@ -50,9 +63,48 @@ class ExpectFuture implements MultiEventSpec{
       throw new IllegalArgumentException("Future (" + future + ") has used in previous expect");
     }
 
-    FutureStruct futureStruct = new FutureStruct(eventType, listenPort, future);
+    boolean isKeyed = future instanceof KeyedFuture;
+    if (!expected.isEmpty() && keyed != isKeyed) {
+      throw new IllegalArgumentException("Keyed and ordered futures cannot be mixed in the same expectWithFuture");
+    }
+    keyed = isKeyed;
+
+    FutureStruct futureStruct = new FutureStruct(expected.size(), eventType, listenPort, future);
     expected.add(futureStruct);
     futures.put(future, futureStruct);
+
+    if (keyed) {
+      List<Class<?>> groupKey = Arrays.<Class<?>>asList(eventType, future.getClass());
+      KeyGroup group = keyGroups.get(groupKey);
+      if (group == null) {
+        group = new KeyGroup(eventType, futureStruct);
+        keyGroups.put(groupKey, group);
+        resolvedGroups.clear();
+      }
+      group.add(((KeyedFuture<E, R>) future).getKey(), futureStruct);
+    }
+  }
+
+  private List<KeyGroup> groupsOf(Class<?> eventType) {
+    List<KeyGroup> groups = resolvedGroups.get(eventType);
+    if (groups == null) {
+      groups = new ArrayList<KeyGroup>();
+      for (KeyGroup group : keyGroups.values()) {
+        if (group.eventType.isAssignableFrom(eventType)) {
+          groups.add(group);
+        }
+      }
+      // a subtype has more supertypes than each of its supertypes, the sort is stable
+      // so groups of the same depth stay in the order they were expected
+      Collections.sort(groups, new Comparator<KeyGroup>() {
+        @Override
+        public int compare(KeyGroup first, KeyGroup second) {
+          return second.depth - first.depth;
+        }
+      });
+      resolvedGroups.put(eventType, groups);
+    }
+    return groups;
   }
 
   void addTrigger(Port<? extends PortType> responsePort,
@@ -67,37 +119,129 @@ class ExpectFuture implements MultiEventSpec{
   }
 
   @Override
-  public boolean match(EventSpec receivedSpec) {
-    FutureStruct nextFuture = expected.get(futureIndex);
+  public MultiEventSpec.Progress newProgress() {
+    return new Progress();
+  }
 
-    if (nextFuture.map(receivedSpec)) {
-      futureIndex++;
-    } else {
-      return false;
+  @Override
+  public Collection<Class<? extends KompicsEvent>> getEventTypes() {
+    List<Class<? extends KompicsEvent>> eventTypes = new ArrayList<Class<? extends KompicsEvent>>();
+    for (FutureStruct futureStruct : expected) {
+      eventTypes.add(futureStruct.eventType);
     }
+    return eventTypes;
+  }
 
-    if (futureIndex == expected.size()) {
-      for (FutureStruct futureStruct : trigger) {
-        futureStruct.handle();
+  private class Progress implements MultiEventSpec.Progress {
+    private int futureIndex = 0;
+    // futures of the current round that were given a request, in keyed mode
+    private final boolean[] matched = new boolean[expected.size()];
+    private int matchedCount = 0;
+
+    @Override
+    public boolean match(EventSpec receivedSpec) {
+      if (keyed) {
+        return matchByKey(receivedSpec);
       }
-      futureIndex = 0;
+
+      FutureStruct nextFuture = expected.get(futureIndex);
+
+      if (nextFuture.map(receivedSpec)) {
+        futureIndex++;
+      } else {
+        return false;
+      }
+
+      if (futureIndex == expected.size()) {
+        for (FutureStruct futureStruct : trigger) {
+          futureStruct.handle();
+        }
+        futureIndex = 0;
+      }
+      return true;
+    }
+
+    private boolean matchByKey(EventSpec receivedSpec) {
+      List<KeyGroup> groups = groupsOf(receivedSpec.getEvent().getClass());
+      for (int i = 0; i < groups.size(); i++) {
+        KeyGroup group = groups.get(i);
+        List<FutureStruct> bucket = group.byKey.get(group.extractor.keyOf(receivedSpec));
+        if (bucket == null) {
+          continue;
+        }
+
+        for (FutureStruct futureStruct : bucket) {
+          if (!matched[futureStruct.index]) {
+            matched[futureStruct.index] = true;
+            futureStruct.map(receivedSpec);
+            if (futureStruct.responsePort != null) {
+              futureStruct.handle();
+            }
+            if (++matchedCount == expected.size()) {
+              Arrays.fill(matched, false);
+              matchedCount = 0;
+            }
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public boolean isComplete() {
+      return keyed? matchedCount == 0 : futureIndex == 0;
     }
-    return true;
   }
 
-  @Override
-  public boolean isComplete() {
-    return futureIndex == 0;
+  // keyed futures of one event type and class, any of them extracts the key of a request for all
+  private class KeyGroup {
+    final Class<? extends KompicsEvent> eventType;
+    final FutureStruct extractor;
+    final Map<Object, List<FutureStruct>> byKey = new HashMap<Object, List<FutureStruct>>();
+    // number of supertypes of the event type
+    final int depth;
+
+    KeyGroup(Class<? extends KompicsEvent> eventType, FutureStruct extractor) {
+      this.eventType = eventType;
+      this.extractor = extractor;
+      Set<Class<?>> supertypes = new HashSet<Class<?>>();
+      collectSupertypes(eventType, supertypes);
+      depth = supertypes.size();
+    }
+
+    private void collectSupertypes(Class<?> type, Set<Class<?>> supertypes) {
+      if (type.getSuperclass() != null && supertypes.add(type.getSuperclass())) {
+        collectSupertypes(type.getSuperclass(), supertypes);
+      }
+      for (Class<?> implemented : type.getInterfaces()) {
+        if (supertypes.add(implemented)) {
+          collectSupertypes(implemented, supertypes);
+        }
+      }
+    }
+
+    void add(Object key, FutureStruct futureStruct) {
+      List<FutureStruct> bucket = byKey.get(key);
+      if (bucket == null) {
+        bucket = new ArrayList<FutureStruct>(1);
+        byKey.put(key, bucket);
+      }
+      bucket.add(futureStruct);
+    }
   }
 
   private class FutureStruct {
+    // position in the expected events
+    final int index;
     final Class<? extends KompicsEvent> eventType;
     final Port<? extends PortType> listenPort;
     Port<? extends PortType> responsePort;
     final Future<? extends KompicsEvent, ? extends KompicsEvent> future;
 
-    FutureStruct(Class<? extends KompicsEvent> eventType, Port<? extends PortType> listenPort,
+    FutureStruct(int index, Class<? extends KompicsEvent> eventType, Port<? extends PortType> listenPort,
                  Future<? extends KompicsEvent, ? extends KompicsEvent> future) {
+      this.index = index;
       this.eventType = eventType;
       this.listenPort = listenPort;
       this.future = future;
@@ -116,6 +260,15 @@ class ExpectFuture implements MultiEventSpec{
       future.set((E) receivedSpec.getEvent());
     }
 
+    Object keyOf(EventSpec receivedSpec) {
+      return keyOfHelper(receivedSpec, (KeyedFuture<? extends KompicsEvent, ? extends KompicsEvent>) future);
+    }
+
+    <E extends KompicsEvent, R extends KompicsEvent> Object keyOfHelper(
+            EventSpec receivedSpec, KeyedFuture<E, R> future) {
+      return future.keyOf((E) receivedSpec.getEvent());
+    }
+
     void handle() {
       KompicsEvent response = future.get();
       //// TODO: 4/1/17 again, fail noisily
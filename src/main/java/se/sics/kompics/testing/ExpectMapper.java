@@ -27,12 +27,16 @@ import se.sics.kompics.Port;
 import se.sics.kompics.PortType;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 class ExpectMapper implements MultiEventSpec{
 
   final List<MapperStruct> expected = new ArrayList<MapperStruct>();
-  private int mapperIndex = 0;
+
+  // responses are triggered once this many matched events are outstanding
+  static final int WHOLE_GROUP = 0;
+  private final int window;
 
   private ComponentCore proxyComponent;
 
@@ -40,8 +44,12 @@ class ExpectMapper implements MultiEventSpec{
   private Class<? extends KompicsEvent> eventType;
   private Function<? extends KompicsEvent, ? extends KompicsEvent> currentMapper;
 
-  ExpectMapper(ComponentCore proxyComponent) {
+  ExpectMapper(ComponentCore proxyComponent, int window) {
+    if (window < 0) {
+      throw new IllegalArgumentException("window (" + window + ") must not be negative");
+    }
     this.proxyComponent = proxyComponent;
+    this.window = window;
   }
 
   <E extends KompicsEvent, R extends KompicsEvent> void setMapperForNext(
@@ -75,28 +83,17 @@ class ExpectMapper implements MultiEventSpec{
   }
 
   @Override
-  public boolean match(EventSpec receivedSpec) {
-    MapperStruct nextMapper = expected.get(mapperIndex);
-
-    if (nextMapper.map(receivedSpec)) {
-      mapperIndex++;
-    } else {
-      return false;
-    }
-
-    // messages are not handled until all seen (optionally?)
-    if (mapperIndex == expected.size()) {
-      for (MapperStruct mapper : expected) {
-        mapper.handle();
-      }
-      mapperIndex = 0;
-    }
-    return true;
+  public MultiEventSpec.Progress newProgress() {
+    return new Progress();
   }
 
   @Override
-  public boolean isComplete() {
-    return mapperIndex == 0;
+  public Collection<Class<? extends KompicsEvent>> getEventTypes() {
+    List<Class<? extends KompicsEvent>> eventTypes = new ArrayList<Class<? extends KompicsEvent>>();
+    for (MapperStruct mapperStruct : expected) {
+      eventTypes.add(mapperStruct.eventType);
+    }
+    return eventTypes;
   }
 
   private void addNewMapperStruct(
@@ -109,20 +106,70 @@ class ExpectMapper implements MultiEventSpec{
 
   @Override
   public String toString() {
-    StringBuilder sb = new StringBuilder("ExpectWithMapper<Seen(");
-    int i = 0;
-    for (; i < mapperIndex; i++) {
-      MapperStruct m = expected.get(i);
+    StringBuilder sb = new StringBuilder("ExpectWithMapper<");
+    for (MapperStruct m : expected) {
       sb.append(" ").append(m);
     }
+    sb.append(">");
+    return sb.toString();
+  }
 
-    sb.append(")Pending(");
-    for (; i < expected.size(); i++) {
-      MapperStruct m = expected.get(i);
-      sb.append(" ").append(m);
+  private class Progress implements MultiEventSpec.Progress {
+    private int mapperIndex = 0;
+    private int handledIndex = 0;
+    // events matched and not yet handled, by position in the group
+    private final EventSpec[] received = new EventSpec[expected.size()];
+
+    @Override
+    public boolean match(EventSpec receivedSpec) {
+      MapperStruct nextMapper = expected.get(mapperIndex);
+
+      if (nextMapper.matches(receivedSpec)) {
+        received[mapperIndex++] = receivedSpec;
+      } else {
+        return false;
+      }
+
+      // without a window, messages are not handled until all are seen
+      if (mapperIndex == expected.size() ||
+          (window != WHOLE_GROUP && mapperIndex - handledIndex >= window)) {
+        for (; handledIndex < mapperIndex; handledIndex++) {
+          KompicsEvent receivedEvent = received[handledIndex].getEvent();
+          // don't keep the event until the struct is matched again
+          received[handledIndex] = null;
+          expected.get(handledIndex).handle(receivedEvent);
+        }
+      }
+
+      if (mapperIndex == expected.size()) {
+        mapperIndex = 0;
+        handledIndex = 0;
+      }
+      return true;
+    }
+
+    @Override
+    public boolean isComplete() {
+      return mapperIndex == 0;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("ExpectWithMapper<Seen(");
+      int i = 0;
+      for (; i < mapperIndex; i++) {
+        MapperStruct m = expected.get(i);
+        sb.append(" ").append(m);
+      }
+
+      sb.append(")Pending(");
+      for (; i < expected.size(); i++) {
+        MapperStruct m = expected.get(i);
+        sb.append(" ").append(m);
+      }
+      sb.append(")>");
+      return sb.toString();
     }
-    sb.append(")>");
-    return sb.toString();
   }
 
   private class MapperStruct {
@@ -131,8 +178,6 @@ class ExpectMapper implements MultiEventSpec{
     final Port<? extends PortType> listenPort;
     final Port<? extends PortType> responsePort;
 
-    EventSpec receivedSpec;
-
     MapperStruct(Class<? extends KompicsEvent> eventType,
                  Function<? extends KompicsEvent, ? extends KompicsEvent> mapper,
                  Port<? extends PortType> listenPort,
@@ -143,16 +188,11 @@ class ExpectMapper implements MultiEventSpec{
       this.responsePort = responsePort;
     }
 
-    boolean map(EventSpec receivedSpec) {
-      if (eventType.isAssignableFrom(receivedSpec.getEvent().getClass())) {
-        this.receivedSpec = receivedSpec;
-        return true;
-      }
-      return false;
+    boolean matches(EventSpec receivedSpec) {
+      return eventType.isAssignableFrom(receivedSpec.getEvent().getClass());
     }
 
-    void handle() {
-      KompicsEvent receivedEvent = receivedSpec.getEvent();
+    void handle(KompicsEvent receivedEvent) {
       handleHelper(receivedEvent, mapper);
     }
 
@@ -46,8 +46,7 @@ class FaultSpec implements Spec {
     this.port = port;
   }
 
-  @Override
-  public boolean match(EventSpec receivedSpec) {
+  boolean match(EventSpec receivedSpec) {
     if (!(receivedSpec.getEvent() instanceof Fault)) {
       return false;
     }
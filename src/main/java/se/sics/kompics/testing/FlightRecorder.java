@@ -0,0 +1,138 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed-size ring of the most recent steps taken by the NFA.
+ * Steps are kept as primitive records (kind, state id, spec id, event class and timestamp)
+ * so recording does not allocate or retain events, older records are overwritten.
+ * The retained records are rendered when the test fails.
+ */
+class FlightRecorder {
+
+  static final int RECEIVED = 0;
+  static final int MATCHED = 1;
+  static final int HANDLED_BY_BLOCK = 2;
+  static final int ALLOWED = 3;
+  static final int DROPPED = 4;
+  static final int DISALLOWED = 5;
+  static final int DEFAULT_ACTION = 6;
+  static final int PERFORMED = 7;
+  static final int ENTERED = 8;
+  static final int ITERATION_COMPLETE = 9;
+  static final int RESET = 10;
+  static final int FAILED = 11;
+  private static final String[] KINDS = {
+      "received", "matched", "matched within block", "allowed", "dropped", "disallowed", "default action for",
+      "performed", "entered", "completed iteration", "reset block", "failed"
+  };
+  static final int NONE = -1;
+
+  private final long[] timestamps;
+  private final byte[] kinds;
+  private final int[] states;
+  private final int[] specs;
+  private final int[] eventTypes;
+  // event classes referred to by records, grows only with the number of distinct classes
+  private final List<Class<?>> types = new ArrayList<Class<?>>();
+  private final Map<Class<?>, Integer> typeIds = new IdentityHashMap<Class<?>, Integer>();
+  private long recorded = 0;
+
+  FlightRecorder(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity (" + capacity + ") must be positive");
+    }
+    timestamps = new long[capacity];
+    kinds = new byte[capacity];
+    states = new int[capacity];
+    specs = new int[capacity];
+    eventTypes = new int[capacity];
+  }
+
+  void record(int kind, int state) {
+    record(kind, state, NONE, NONE);
+  }
+
+  void record(int kind, int state, int spec) {
+    record(kind, state, spec, NONE);
+  }
+
+  void record(int kind, int state, int spec, Class<?> eventType) {
+    Integer id = typeIds.get(eventType);
+    if (id == null) {
+      id = types.size();
+      types.add(eventType);
+      typeIds.put(eventType, id);
+    }
+    record(kind, state, spec, id.intValue());
+  }
+
+  private void record(int kind, int state, int spec, int eventType) {
+    int index = (int) (recorded % timestamps.length);
+    timestamps[index] = System.nanoTime();
+    kinds[index] = (byte) kind;
+    states[index] = state;
+    specs[index] = spec;
+    eventTypes[index] = eventType;
+    recorded++;
+  }
+
+  // number of retained records
+  int size() {
+    return (int) Math.min(recorded, timestamps.length);
+  }
+
+  long recorded() {
+    return recorded;
+  }
+
+  // specs are looked up by the recorded spec ids
+  String render(List<?> specsById) {
+    int size = size();
+    StringBuilder sb = new StringBuilder();
+    sb.append("last ").append(size).append(" of ").append(recorded).append(" steps:");
+    long first = recorded - size;
+    long start = timestamps[(int) (first % timestamps.length)];
+    for (long i = first; i < recorded; i++) {
+      int index = (int) (i % timestamps.length);
+      double elapsedMS = (timestamps[index] - start) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+      sb.append(String.format("%n%12.3f ms  ", elapsedMS));
+      if (states[index] != NONE) {
+        sb.append("state ").append(states[index]).append(" ");
+      }
+      sb.append(KINDS[kinds[index]]);
+      if (specs[index] != NONE) {
+        sb.append(" ").append(specsById.get(specs[index]));
+      }
+      if (eventTypes[index] != NONE) {
+        String separator = specs[index] != NONE? " with " : kinds[index] == FAILED? " on " : " ";
+        sb.append(separator).append(types.get(eventTypes[index]).getSimpleName());
+      }
+    }
+    return sb.toString();
+  }
+}
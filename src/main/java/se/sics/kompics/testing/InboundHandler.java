@@ -43,7 +43,11 @@ class InboundHandler extends ProxyHandler {
       request.pushPathElement(proxy.getComponentCore());
     }
 
-    EventSpec eventSpec = proxy.getFsm().newEventSpec(event, destPort, Direction.IN);
+    if (passThrough(event)) {
+      return;
+    }
+
+    EventSpec eventSpec = proxy.getFsm().newReceivedSpec(event, destPort, Direction.IN);
     eventSpec.setHandler(this);
     eventQueue.offer(eventSpec);
   }
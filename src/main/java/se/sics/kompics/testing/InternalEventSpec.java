@@ -35,13 +35,18 @@ class InternalEventSpec implements Spec {
   private boolean inspect;
   private Predicate<? extends ComponentDefinition> inspectPredicate;
   private ComponentDefinition definitionUnderTest;
+  private CTRL<?> ctrl;
 
   private boolean trigger;
   private KompicsEvent event;
   private Port<? extends PortType> port;
 
-  <T extends ComponentDefinition> InternalEventSpec(T definitionUnderTest, Predicate<T> inspectPredicate) {
+  private LoadGenerator generator;
+
+  <T extends ComponentDefinition> InternalEventSpec(
+      T definitionUnderTest, Predicate<T> inspectPredicate, CTRL<?> ctrl) {
     this.definitionUnderTest = definitionUnderTest;
+    this.ctrl = ctrl;
     this.inspectPredicate = inspectPredicate;
     inspect = true;
   }
@@ -52,9 +57,8 @@ class InternalEventSpec implements Spec {
     trigger = true;
   }
 
-  @Override
-  public boolean match(EventSpec receivedSpec) {
-    return false;
+  InternalEventSpec(LoadGenerator generator) {
+    this.generator = generator;
   }
 
   String performInternalEvent() {
@@ -64,6 +68,10 @@ class InternalEventSpec implements Spec {
     if (trigger) {
       return doTrigger();
     }
+    if (generator != null) {
+      logger.debug("starting {}", generator);
+      generator.start();
+    }
     return null;
   }
 
@@ -77,13 +85,8 @@ class InternalEventSpec implements Spec {
     logger.debug("Inspecting Component");
     JavaComponent cut = (JavaComponent) definitionUnderTest.getComponentCore();
 
-    // // TODO: 3/31/17 do not poll
-    while (cut.workCount.get() > 0) {
-      try {
-        Thread.sleep(100);
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
+    if (!ctrl.awaitIdle(cut)) {
+      return "Component under test was not idle within the inspect timeout";
     }
     boolean successful = inspect(definitionUnderTest, inspectPredicate);
 
@@ -103,6 +106,9 @@ class InternalEventSpec implements Spec {
     if (event != null) {
       return "trigger(" + event + ")";
     }
+    if (generator != null) {
+      return generator.toString();
+    }
     return null;
   }
 }
@@ -0,0 +1,49 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import se.sics.kompics.KompicsEvent;
+
+/**
+ * A {@link Future} that is correlated with its request by key instead of by position.
+ * Within an expectWithFuture block made up of keyed futures, a received request is given
+ * to the future whose key equals {@link #keyOf(KompicsEvent)} of the request, and that
+ * future's response (if any) is triggered immediately instead of after the whole block.
+ * Keys are extracted once per class of future, so {@link #keyOf(KompicsEvent)} must only depend
+ * on the request. If futures of several event types match a request, the most specific type is tried first.
+ */
+abstract class KeyedFuture<E extends KompicsEvent, R extends KompicsEvent> extends Future<E, R> {
+
+  private final Object key;
+
+  KeyedFuture(Object key) {
+    if (key == null) {
+      throw new NullPointerException("key must not be null");
+    }
+    this.key = key;
+  }
+
+  final Object getKey() {
+    return key;
+  }
+
+  public abstract Object keyOf(E request);
+}
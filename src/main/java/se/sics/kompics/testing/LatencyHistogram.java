@@ -0,0 +1,125 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of latencies in nanoseconds with a bounded relative error.
+ * Values below 128ns are counted exactly, larger values are counted in buckets
+ * whose width doubles with every power of two, each split into 64 sub buckets,
+ * so percentiles are reported within 1.6% of the recorded values using a fixed amount of memory.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+  private final long[] counts = new long[indexOf(Long.MAX_VALUE) + 1];
+  private long count;
+  private long sum;
+  private long min = Long.MAX_VALUE;
+  private long max;
+
+  LatencyHistogram() { }
+
+  void record(long latencyNanos) {
+    long value = Math.max(0, latencyNanos);
+    counts[indexOf(value)]++;
+    count++;
+    sum += value;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  void reset() {
+    if (count > 0) {
+      Arrays.fill(counts, 0);
+    }
+    count = 0;
+    sum = 0;
+    min = Long.MAX_VALUE;
+    max = 0;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getMin() {
+    return count == 0? 0 : min;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public double getMean() {
+    return count == 0? 0 : (double) sum / count;
+  }
+
+  // the highest latency of the bucket holding the given percentile (0 < percentile <= 100)
+  public long getValueAtPercentile(double percentile) {
+    if (percentile <= 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile " + percentile + " must be within (0, 100]");
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(highestValueAt(i), max);
+      }
+    }
+    return max;
+  }
+
+  private static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return HALF_SUB_BUCKETS * shift + (int) (value >>> shift);
+  }
+
+  private static long highestValueAt(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / HALF_SUB_BUCKETS - 1;
+    long subBucket = index - HALF_SUB_BUCKETS * shift;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Latency[count=%d min=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms]",
+        count, getMin() / 1e6, percentileMS(50), percentileMS(90), percentileMS(99), max / 1e6);
+  }
+
+  private double percentileMS(double percentile) {
+    return getValueAtPercentile(percentile) / 1e6;
+  }
+}
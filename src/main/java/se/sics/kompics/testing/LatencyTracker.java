@@ -0,0 +1,336 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import com.google.common.base.Function;
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.Port;
+import se.sics.kompics.PortType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pairs requests and responses received by the proxy and records the time between them.
+ * A response answers a request of its pair of event types that was received on the same port
+ * in the opposite direction, either the oldest outstanding one or the oldest one with an equal
+ * key if key functions are given. Events are paired by the most specific measured type they are an
+ * instance of and latencies are kept per port and measured request type, over all runs.
+ * Outstanding requests and the latencies of block assertions are part of the state of a run.
+ * At most maxPending requests are outstanding per port and direction, beyond that the oldest request
+ * of the key that has been waiting the longest is evicted and counted as unanswered.
+ * Only accessed by the thread running the test.
+ */
+class LatencyTracker {
+
+  static final int DEFAULT_MAX_PENDING = 1 << 16;
+  private static final Object NO_KEY = new Object();
+
+  private final NFA table;
+  private int maxPending = DEFAULT_MAX_PENDING;
+
+  private final Map<Class<? extends KompicsEvent>, Pairing> byRequestType =
+      new HashMap<Class<? extends KompicsEvent>, Pairing>();
+  private final Map<Class<? extends KompicsEvent>, Pairing> byResponseType =
+      new HashMap<Class<? extends KompicsEvent>, Pairing>();
+  // pairing of the most specific measured type of each received class, null if not measured
+  private final Map<Class<? extends KompicsEvent>, Pairing> requestPairings =
+      new HashMap<Class<? extends KompicsEvent>, Pairing>();
+  private final Map<Class<? extends KompicsEvent>, Pairing> responsePairings =
+      new HashMap<Class<? extends KompicsEvent>, Pairing>();
+
+  LatencyTracker(NFA table) {
+    this.table = table;
+  }
+
+  <Q extends KompicsEvent, R extends KompicsEvent> void addPair(
+      Class<Q> requestType, Function<Q, ?> requestKey,
+      Class<R> responseType, Function<R, ?> responseKey) {
+    if (byRequestType.containsKey(requestType) || byResponseType.containsKey(responseType)) {
+      throw new IllegalStateException("latency of " + requestType.getSimpleName() + " or " +
+          responseType.getSimpleName() + " is already measured");
+    }
+    Pairing pairing = new Pairing(requestType, requestKey, responseKey);
+    byRequestType.put(requestType, pairing);
+    byResponseType.put(responseType, pairing);
+  }
+
+  void setMaxPending(int maxPending) {
+    this.maxPending = maxPending;
+  }
+
+  boolean isMeasured(Class<? extends KompicsEvent> requestType) {
+    return byRequestType.containsKey(requestType);
+  }
+
+  void record(EventSpec receivedSpec) {
+    Class<? extends KompicsEvent> eventType = receivedSpec.getEvent().getClass();
+    Pairing pairing = resolve(byRequestType, requestPairings, eventType);
+    if (pairing != null) {
+      pairing.request(receivedSpec);
+    }
+    pairing = resolve(byResponseType, responsePairings, eventType);
+    if (pairing != null) {
+      pairing.response(receivedSpec);
+    }
+  }
+
+  private Pairing resolve(Map<Class<? extends KompicsEvent>, Pairing> pairings,
+                          Map<Class<? extends KompicsEvent>, Pairing> resolved,
+                          Class<? extends KompicsEvent> eventType) {
+    if (resolved.containsKey(eventType)) {
+      return resolved.get(eventType);
+    }
+    Class<? extends KompicsEvent> mostSpecific = null;
+    for (Class<? extends KompicsEvent> measuredType : pairings.keySet()) {
+      if (measuredType.isAssignableFrom(eventType) &&
+          (mostSpecific == null || mostSpecific.isAssignableFrom(measuredType))) {
+        mostSpecific = measuredType;
+      }
+    }
+    Pairing pairing = mostSpecific == null? null : pairings.get(mostSpecific);
+    resolved.put(eventType, pairing);
+    return pairing;
+  }
+
+  LatencyHistogram getHistogram(Port<? extends PortType> port, Class<? extends KompicsEvent> requestType) {
+    Pairing pairing = byRequestType.get(requestType);
+    PortLatencies latencies = pairing == null? null : pairing.ports.get(port);
+    return latencies == null? new LatencyHistogram() : latencies.histogram;
+  }
+
+  long getUnanswered(Port<? extends PortType> port, Class<? extends KompicsEvent> requestType) {
+    Pairing pairing = byRequestType.get(requestType);
+    PortLatencies latencies = pairing == null? null : pairing.ports.get(port);
+    return latencies == null? 0 : latencies.unanswered;
+  }
+
+  BlockAssertion newAssertion(Port<? extends PortType> port, Class<? extends KompicsEvent> requestType,
+                              double percentile, long maxNanos) {
+    if (percentile <= 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile " + percentile + " must be within (0, 100]");
+    }
+    LatencyAssertion assertion = new LatencyAssertion(port, requestType, percentile, maxNanos);
+    byRequestType.get(requestType).latenciesAt(port).assertions.add(assertion);
+    return assertion;
+  }
+
+  private class Pairing {
+    final Class<? extends KompicsEvent> requestType;
+    final Function<? extends KompicsEvent, ?> requestKey;
+    final Function<? extends KompicsEvent, ?> responseKey;
+    final Map<Port<? extends PortType>, PortLatencies> ports =
+        new HashMap<Port<? extends PortType>, PortLatencies>();
+
+    Pairing(Class<? extends KompicsEvent> requestType,
+            Function<? extends KompicsEvent, ?> requestKey, Function<? extends KompicsEvent, ?> responseKey) {
+      this.requestType = requestType;
+      this.requestKey = requestKey;
+      this.responseKey = responseKey;
+    }
+
+    void request(EventSpec receivedSpec) {
+      PortLatencies latencies = latenciesAt(receivedSpec.getPort());
+      Outstanding pending = table.pendingRequests().of(latencies, receivedSpec.getDirection());
+      Object key = keyOf(requestKey, receivedSpec.getEvent());
+      if (!pending.add(key, receivedSpec.getTimestamp(), maxPending)) {
+        latencies.unanswered++;
+      }
+    }
+
+    void response(EventSpec receivedSpec) {
+      PortLatencies latencies = ports.get(receivedSpec.getPort());
+      if (latencies == null) {
+        return;
+      }
+      // the request was received in the opposite direction
+      Direction requestDirection = receivedSpec.getDirection() == Direction.IN? Direction.OUT : Direction.IN;
+      Outstanding pending = table.pendingRequests().of(latencies, requestDirection);
+      Object key = keyOf(responseKey, receivedSpec.getEvent());
+      TimestampRing requests = pending.requestsOf(key);
+      if (requests == null) {
+        return;
+      }
+      latencies.record(receivedSpec.getTimestamp() - pending.poll(key, requests));
+    }
+
+    PortLatencies latenciesAt(Port<? extends PortType> port) {
+      PortLatencies latencies = ports.get(port);
+      if (latencies == null) {
+        latencies = new PortLatencies();
+        ports.put(port, latencies);
+      }
+      return latencies;
+    }
+
+    private <E extends KompicsEvent> Object keyOf(Function<E, ?> keyFunction, KompicsEvent event) {
+      return keyFunction == null? NO_KEY : keyFunction.apply((E) event);
+    }
+  }
+
+  private class PortLatencies {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    final List<LatencyAssertion> assertions = new ArrayList<LatencyAssertion>();
+    // requests evicted before they were answered, over all runs
+    long unanswered;
+
+    void record(long latency) {
+      histogram.record(latency);
+      for (LatencyAssertion assertion : assertions) {
+        // only measured while the block of the assertion is executed
+        LatencyAssertion.Latencies latencies = (LatencyAssertion.Latencies) table.measurementOf(assertion);
+        if (latencies != null) {
+          latencies.histogram.record(latency);
+        }
+      }
+    }
+  }
+
+  // outstanding request timestamps of a run by key, for requests received in and out of each port
+  static class Pending {
+    private final Map<PortLatencies, Outstanding> pendingIn = new IdentityHashMap<PortLatencies, Outstanding>();
+    private final Map<PortLatencies, Outstanding> pendingOut = new IdentityHashMap<PortLatencies, Outstanding>();
+
+    private Outstanding of(PortLatencies latencies, Direction direction) {
+      Map<PortLatencies, Outstanding> byPort = direction == Direction.IN? pendingIn : pendingOut;
+      Outstanding pending = byPort.get(latencies);
+      if (pending == null) {
+        pending = new Outstanding();
+        byPort.put(latencies, pending);
+      }
+      return pending;
+    }
+  }
+
+  // requests received in one direction of a port, keys in the order they started waiting
+  private static class Outstanding {
+    private final LinkedHashMap<Object, TimestampRing> byKey = new LinkedHashMap<Object, TimestampRing>();
+    private int size;
+    // ring of the last answered key, reused by the next key
+    private TimestampRing spare;
+
+    // returns false if a request was evicted to stay within maxSize
+    boolean add(Object key, long timestamp, int maxSize) {
+      boolean evicted = false;
+      if (size == maxSize) {
+        Map.Entry<Object, TimestampRing> eldest = byKey.entrySet().iterator().next();
+        poll(eldest.getKey(), eldest.getValue());
+        evicted = true;
+      }
+      TimestampRing requests = byKey.get(key);
+      if (requests == null) {
+        requests = spare == null? new TimestampRing() : spare;
+        spare = null;
+        byKey.put(key, requests);
+      }
+      requests.add(timestamp);
+      size++;
+      return !evicted;
+    }
+
+    TimestampRing requestsOf(Object key) {
+      return byKey.get(key);
+    }
+
+    long poll(Object key, TimestampRing requests) {
+      long timestamp = requests.poll();
+      size--;
+      if (requests.isEmpty()) {
+        byKey.remove(key);
+        spare = requests;
+      }
+      return timestamp;
+    }
+  }
+
+  // timestamps of the requests of one key, oldest first, without boxing
+  private static class TimestampRing {
+    private long[] timestamps = new long[2];
+    private int head;
+    private int size;
+
+    void add(long timestamp) {
+      if (size == timestamps.length) {
+        long[] grown = new long[2 * size];
+        for (int i = 0; i < size; i++) {
+          grown[i] = timestamps[(head + i) & (size - 1)];
+        }
+        timestamps = grown;
+        head = 0;
+      }
+      timestamps[(head + size) & (timestamps.length - 1)] = timestamp;
+      size++;
+    }
+
+    long poll() {
+      long timestamp = timestamps[head];
+      head = (head + 1) & (timestamps.length - 1);
+      size--;
+      return timestamp;
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+  }
+
+  private static class LatencyAssertion implements BlockAssertion {
+    final Port<? extends PortType> port;
+    final Class<? extends KompicsEvent> requestType;
+    final double percentile;
+    final long maxNanos;
+
+    LatencyAssertion(Port<? extends PortType> port, Class<? extends KompicsEvent> requestType,
+                     double percentile, long maxNanos) {
+      this.port = port;
+      this.requestType = requestType;
+      this.percentile = percentile;
+      this.maxNanos = maxNanos;
+    }
+
+    @Override
+    public Latencies start() {
+      return new Latencies();
+    }
+
+    // latencies measured over one execution of the block
+    class Latencies implements Measurement {
+      final LatencyHistogram histogram = new LatencyHistogram();
+
+      @Override
+      public String finish() {
+        if (histogram.getCount() == 0) {
+          return String.format("no %s latencies were measured on %s", requestType.getSimpleName(), port);
+        }
+        long latency = histogram.getValueAtPercentile(percentile);
+        if (latency > maxNanos) {
+          return String.format("p%s latency of %s on %s was %.3f ms, expected at most %.3f ms over %d responses",
+              percentile, requestType.getSimpleName(), port, latency / 1e6, maxNanos / 1e6, histogram.getCount());
+        }
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import com.google.common.base.Function;
+import se.sics.kompics.network.Address;
+import se.sics.kompics.network.Msg;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Network model with a fixed latency, uniformly distributed jitter, random message loss
+ * and an optional bandwidth limit on each (source, destination) link.
+ * Random choices are made from the given seed so runs can be repeated.
+ */
+public class LinkModel implements NetworkModel {
+
+  private final Random random;
+  private long latency;
+  private long jitter;
+  private double dropRate;
+
+  // bytes per second, unlimited if 0
+  private long bandwidth;
+  private Function<Msg, Integer> sizeOf;
+  // virtual time at which each link has sent its queued messages
+  private final Map<Link, Long> busyUntil = new HashMap<Link, Long>();
+
+  public LinkModel(long seed) {
+    random = new Random(seed);
+  }
+
+  public LinkModel setLatency(long latencyMS) {
+    checkNotNegative(latencyMS);
+    latency = latencyMS;
+    return this;
+  }
+
+  public LinkModel setJitter(long jitterMS) {
+    checkNotNegative(jitterMS);
+    jitter = jitterMS;
+    return this;
+  }
+
+  public LinkModel setDropRate(double dropRate) {
+    if (dropRate < 0 || dropRate > 1) {
+      throw new IllegalArgumentException("Drop rate " + dropRate + " is not within [0, 1]");
+    }
+    this.dropRate = dropRate;
+    return this;
+  }
+
+  // sizeOf returns the number of bytes a message occupies on a link
+  public LinkModel setBandwidth(long bytesPerSecond, Function<Msg, Integer> sizeOf) {
+    checkNotNegative(bytesPerSecond);
+    TestContext.checkNotNull(sizeOf);
+    bandwidth = bytesPerSecond;
+    this.sizeOf = sizeOf;
+    return this;
+  }
+
+  @Override
+  public long deliveryDelay(Msg message, long now) {
+    if (dropRate > 0 && random.nextDouble() < dropRate) {
+      return -1;
+    }
+
+    long delay = latency;
+    if (jitter > 0) {
+      delay += (long) (random.nextDouble() * (jitter + 1));
+    }
+
+    if (bandwidth > 0) {
+      // messages on a link are transmitted one after the other
+      Link link = new Link(message.getSource(), message.getDestination());
+      Long free = busyUntil.get(link);
+      long start = free == null? now : Math.max(now, free);
+      long transmission = (sizeOf.apply(message) * 1000L + bandwidth - 1) / bandwidth;
+      busyUntil.put(link, start + transmission);
+      delay += start + transmission - now;
+    }
+    return delay;
+  }
+
+  private void checkNotNegative(long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Negative value " + value);
+    }
+  }
+
+  private static class Link {
+    final Address source;
+    final Address destination;
+
+    Link(Address source, Address destination) {
+      this.source = source;
+      this.destination = destination;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Link)) {
+        return false;
+      }
+      Link other = (Link) o;
+      return source.equals(other.source) && destination.equals(other.destination);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * source.hashCode() + destination.hashCode();
+    }
+  }
+}
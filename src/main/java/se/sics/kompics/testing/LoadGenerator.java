@@ -0,0 +1,120 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import com.google.common.base.Supplier;
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.Port;
+import se.sics.kompics.PortType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open loop source of events triggered on a port from its own thread.
+ * Each start runs the load profile once, at the scheduled times regardless of
+ * the progress of the test, until all events were triggered or the test ends.
+ */
+class LoadGenerator {
+
+  private final Supplier<? extends KompicsEvent> supplier;
+  private final Port<? extends PortType> port;
+  private final LoadProfile profile;
+  // running threads, stopped by interrupting them
+  private final List<Thread> threads = new ArrayList<Thread>();
+  // first exception thrown by the supplier or while triggering, fails the test
+  private volatile Throwable failure;
+  // started threads that have not returned yet
+  private final AtomicInteger running = new AtomicInteger();
+
+  LoadGenerator(Supplier<? extends KompicsEvent> supplier,
+                Port<? extends PortType> port, LoadProfile profile) {
+    this.supplier = supplier;
+    this.port = port;
+    this.profile = profile;
+  }
+
+  void start() {
+    final LoadProfile profile = this.profile.newRun();
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          generate(profile);
+        } catch (Throwable throwable) {
+          if (failure == null) {
+            failure = throwable;
+          }
+        } finally {
+          running.decrementAndGet();
+        }
+      }
+    }, "kompics-load-generator");
+    thread.setDaemon(true);
+    synchronized (threads) {
+      threads.add(thread);
+    }
+    running.incrementAndGet();
+    thread.start();
+  }
+
+  void stop() {
+    synchronized (threads) {
+      for (Thread thread : threads) {
+        thread.interrupt();
+      }
+      threads.clear();
+    }
+  }
+
+  // events may still be triggered while running
+  boolean isRunning() {
+    return running.get() > 0;
+  }
+
+  Throwable getFailure() {
+    return failure;
+  }
+
+  private void generate(LoadProfile profile) {
+    Thread current = Thread.currentThread();
+    long next = System.nanoTime();
+    for (int i = 0; i < profile.count && !current.isInterrupted(); i++) {
+      // arrivals are due at absolute times so slow triggers don't delay later events
+      next += profile.delayNanos(i);
+      long wait;
+      while ((wait = next - System.nanoTime()) > 0 && !current.isInterrupted()) {
+        LockSupport.parkNanos(wait);
+      }
+      if (current.isInterrupted()) {
+        return;
+      }
+      port.doTrigger(supplier.get(), 0, port.getOwner());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "generate(" + profile.count + " on " + port + ")";
+  }
+}
@@ -0,0 +1,114 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Arrival times of the events injected by {@link TestContext#generate}.
+ * Arrivals are scheduled relative to the start of the generator, independent of
+ * when the component under test handles previous events.
+ */
+public abstract class LoadProfile {
+
+  final int count;
+
+  protected LoadProfile(int count) {
+    if (count <= 0) {
+      throw new IllegalArgumentException("number of events (" + count + ") must be positive");
+    }
+    this.count = count;
+  }
+
+  /**
+   * @param index index of the event, starting at 0
+   * @return nanoseconds between the arrival of the previous event (or the start) and this event
+   */
+  public abstract long delayNanos(int index);
+
+  // profile of a single start of a generator, profiles with state start over for every start
+  LoadProfile newRun() {
+    return this;
+  }
+
+  // count events evenly spaced at the given rate
+  public static LoadProfile fixedRate(double perSecond, int count) {
+    checkRate(perSecond);
+    final long interval = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+    return new LoadProfile(count) {
+      @Override
+      public long delayNanos(int index) {
+        return index == 0? 0 : interval;
+      }
+    };
+  }
+
+  // bursts of burstSize back to back events, the starts of consecutive bursts intervalMS apart
+  public static LoadProfile bursts(final int burstSize, long intervalMS, int bursts) {
+    if (burstSize <= 0 || intervalMS < 0) {
+      throw new IllegalArgumentException("Invalid burst size " + burstSize + " or interval " + intervalMS);
+    }
+    final long interval = TimeUnit.MILLISECONDS.toNanos(intervalMS);
+    return new LoadProfile(burstSize * bursts) {
+      @Override
+      public long delayNanos(int index) {
+        return index > 0 && index % burstSize == 0? interval : 0;
+      }
+    };
+  }
+
+  // count events with exponentially distributed gaps of mean 1 / perSecond, from the given seed
+  public static LoadProfile poisson(double perSecond, int count, long seed) {
+    checkRate(perSecond);
+    return new PoissonProfile(TimeUnit.SECONDS.toNanos(1) / perSecond, count, seed);
+  }
+
+  private static void checkRate(double perSecond) {
+    if (!(perSecond > 0)) {
+      throw new IllegalArgumentException("rate " + perSecond + " must be positive");
+    }
+  }
+
+  private static class PoissonProfile extends LoadProfile {
+    private final double meanNanos;
+    private final long seed;
+    private final Random random;
+
+    PoissonProfile(double meanNanos, int count, long seed) {
+      super(count);
+      this.meanNanos = meanNanos;
+      this.seed = seed;
+      random = new Random(seed);
+    }
+
+    @Override
+    public long delayNanos(int index) {
+      return (long) (-Math.log(1 - random.nextDouble()) * meanNanos);
+    }
+
+    // every start draws the same arrivals from its own random source
+    @Override
+    LoadProfile newRun() {
+      return new PoissonProfile(meanNanos, count, seed);
+    }
+  }
+}
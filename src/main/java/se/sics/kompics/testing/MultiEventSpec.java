@@ -20,6 +20,21 @@
  */
 package se.sics.kompics.testing;
 
+import se.sics.kompics.KompicsEvent;
+
+import java.util.Collection;
+
 interface MultiEventSpec extends Spec{
-  boolean isComplete();
+  // matching is stateful, received events are matched against the progress of a run instead of the spec
+  Progress newProgress();
+
+  // types of the events this spec may match
+  Collection<Class<? extends KompicsEvent>> getEventTypes();
+
+  // events of the group matched so far in one run of the specification
+  interface Progress {
+    boolean match(EventSpec receivedSpec);
+
+    boolean isComplete();
+  }
 }
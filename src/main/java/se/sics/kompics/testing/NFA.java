@@ -24,45 +24,86 @@ import com.google.common.base.Function;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 import org.slf4j.Logger;
+import se.sics.kompics.Fault;
 import se.sics.kompics.KompicsEvent;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 class NFA {
   private int stateIDs = 0;
-
-  private final Comparator<Class<? extends KompicsEvent>> eventComparator = new Comparator<Class<? extends KompicsEvent>>() {
-    @Override
-    public int compare(Class<? extends KompicsEvent> e1, Class<? extends KompicsEvent> e2) {
-      if (e1 == e2) {
-        return 0;
-      } else if (e1.isAssignableFrom(e2)) {
-        return 1;
-      } else {
-        return -1;
-      }
-    }
-  };
-
-  private final Map<Class<? extends KompicsEvent>, Function<? extends KompicsEvent, Action>> defaultActions =
-      new TreeMap<Class<? extends KompicsEvent>, Function<? extends KompicsEvent, Action>>(eventComparator);
+  // result of matching a received event from a single state
+  private static final int NO_TRANSITION = 0;
+  private static final int TRANSITION = 1;
+  private static final int HANDLE_TRANSITION = 3;
+  // the thread dies, set together with the results of other threads
+  private static final int DISALLOWED = 4;
+
+  // registered default actions, in registration order
+  private final Map<Class<? extends KompicsEvent>, DefaultAction> defaultActions =
+      new LinkedHashMap<Class<? extends KompicsEvent>, DefaultAction>();
+  // most specific registered default action per received event class
+  private final Map<Class<? extends KompicsEvent>, DefaultAction> resolvedDefaults =
+      new HashMap<Class<? extends KompicsEvent>, DefaultAction>();
+  private static final DefaultAction NO_DEFAULT_ACTION = new DefaultAction(null, null, null);
+
+  // types of events referred to by some spec, known once built
+  private final Set<Class<? extends KompicsEvent>> observedTypes = new HashSet<Class<? extends KompicsEvent>>();
+  // actions applied to unobserved events without queueing them, FAIL if they must be queued
+  private final ConcurrentMap<Class<? extends KompicsEvent>, Action> passThroughActions =
+      new ConcurrentHashMap<Class<? extends KompicsEvent>, Action>();
 
   private RepeatFA repeatMain;
-  private Set<State> currentStates = new HashSet<State>();
-  private final State errorState = new State(nextid(), null);
+  // states indexed by id - sets of states are bitsets over this list
+  private final List<State> statesById = new ArrayList<State>();
+  private final BitSet finalStates = new BitSet();
+  // states from which no final state can be reached
+  private final BitSet deadStates = new BitSet();
+  // state of the current run, replaced for every run of the built automaton
+  private Run run;
+  // scratch set of next states, reused for every transition
+  private final BitSet nextStates = new BitSet();
   private Logger logger = TestContext.logger;
   private FA currentFA;
   private Stack<FA> previousFA = new Stack<FA>();
-  private HashSet<Block> activeBlocks = new HashSet<Block>();
+  private final Set<Block> activeBlocks = Collections.newSetFromMap(new IdentityHashMap<Block, Boolean>());
+  // every block of the specification, known once built
+  private final Set<Block> blocks = Collections.newSetFromMap(new IdentityHashMap<Block, Boolean>());
+
+  // compiled mode - null unless a transition cache size was set
+  private DFACache<Step> dfa;
+  // outcome of a compiled step that is being simulated on the NFA for the first time
+  private Outcome capturing;
+
+  // deadlines of expected events and block iterations - null unless within() was used
+  private DeadlineWheel deadlines;
+  private final BitSet deadlineStates = new BitSet();
+
+  // most recent steps, rendered if the test fails
+  private static final int TRACE_SIZE = 64;
+  private FlightRecorder recorder = new FlightRecorder(TRACE_SIZE);
+  // specs of transitions indexed by the ids in recorded steps
+  private final List<Spec> specsById = new ArrayList<Spec>();
+  private final Map<Spec, Integer> specIds = new IdentityHashMap<Spec, Integer>();
+  // steps are also logged at debug level unless in soak mode
+  private boolean soakMode;
+  private boolean logSteps;
 
   NFA(Block initialBlock) {
     repeatMain = new RepeatFA(1, initialBlock);
@@ -74,8 +115,18 @@ class NFA {
     return stateIDs++;
   }
 
-  <E extends KompicsEvent> void setDefaultAction(Class<E> eventType, Function<E, Action> predicate) {
-    defaultActions.put(eventType, predicate);
+  @SuppressWarnings("unchecked")
+  <E extends KompicsEvent> void setDefaultAction(Class<E> eventType, Function<E, Action> function) {
+    addDefaultAction(new DefaultAction(eventType, (Function<KompicsEvent, Action>) function, null));
+  }
+
+  <E extends KompicsEvent> void setDefaultAction(Class<E> eventType, Action action) {
+    addDefaultAction(new DefaultAction(eventType, null, action));
+  }
+
+  private void addDefaultAction(DefaultAction defaultAction) {
+    defaultActions.put(defaultAction.eventType, defaultAction);
+    resolvedDefaults.clear();
   }
 
   private Action defaultLookup(EventSpec receivedSpec) {
@@ -86,23 +137,117 @@ class NFA {
     KompicsEvent event = receivedSpec.getEvent();
     Class<? extends KompicsEvent> eventType = event.getClass();
 
-    for (Class<? extends KompicsEvent> registeredType : defaultActions.keySet()) {
-      if (registeredType.isAssignableFrom(eventType)) {
-        return actionFor(event, registeredType);
+    DefaultAction defaultAction = resolvedDefaults.get(eventType);
+    if (defaultAction == null) {
+      defaultAction = resolveDefaultAction(eventType);
+      resolvedDefaults.put(eventType, defaultAction);
+    }
+    return defaultAction.actionFor(event);
+  }
+
+  private DefaultAction resolveDefaultAction(Class<? extends KompicsEvent> eventType) {
+    // pick the most specific registered supertype, the earliest registered if unrelated
+    DefaultAction mostSpecific = NO_DEFAULT_ACTION;
+    for (DefaultAction defaultAction : defaultActions.values()) {
+      if (defaultAction.eventType.isAssignableFrom(eventType) &&
+          (mostSpecific == NO_DEFAULT_ACTION ||
+              mostSpecific.eventType.isAssignableFrom(defaultAction.eventType))) {
+        mostSpecific = defaultAction;
       }
     }
-    return null;
+    return mostSpecific;
   }
 
-  private <E extends KompicsEvent> Action actionFor(
-      KompicsEvent event, Class<? extends KompicsEvent> registeredType) {
-    Function<E, Action> function = (Function<E, Action>) defaultActions.get(registeredType);
-    Action action = function.apply((E) event);
+  // called from component threads once built
+  Action passThroughAction(Class<? extends KompicsEvent> eventType) {
+    Action action = passThroughActions.get(eventType);
     if (action == null) {
-      throw new NullPointerException(String.format("(default handler for %s returned null for event '%s')",
-          registeredType, event));
+      action = resolvePassThroughAction(eventType);
+      passThroughActions.put(eventType, action);
+    }
+    return action == Action.FAIL? null : action;
+  }
+
+  private Action resolvePassThroughAction(Class<? extends KompicsEvent> eventType) {
+    for (Class<? extends KompicsEvent> observedType : observedTypes) {
+      // user defined equals may match events of related classes
+      if (observedType.isAssignableFrom(eventType) || eventType.isAssignableFrom(observedType)) {
+        return Action.FAIL;
+      }
+    }
+    // no transition can match, so the outcome is the default action if it is constant
+    DefaultAction defaultAction = resolveDefaultAction(eventType);
+    if (defaultAction == NO_DEFAULT_ACTION || defaultAction.function != null) {
+      return Action.FAIL;
+    }
+    return defaultAction.action;
+  }
+
+  // events of the type are queued even if no spec observes them, e.g. to measure them
+  void observe(Class<? extends KompicsEvent> eventType) {
+    observedTypes.add(eventType);
+  }
+
+  private void collectObservedTypes() {
+    for (State state : statesById) {
+      for (Spec spec : state.transitions.keySet()) {
+        addObservedTypes(spec);
+      }
+      for (Block block = state.block; block != null && blocks.add(block); block = block.previousBlock) {
+        block.id = blocks.size() - 1;
+        for (Spec spec : block.getExpectedSpecs()) {
+          addObservedTypes(spec);
+        }
+        for (Spec spec : block.getAllowedSpecs()) {
+          addObservedTypes(spec);
+        }
+        for (Spec spec : block.getDroppedSpecs()) {
+          addObservedTypes(spec);
+        }
+        for (Spec spec : block.getDisallowedSpecs()) {
+          addObservedTypes(spec);
+        }
+      }
+    }
+  }
+
+  private void addObservedTypes(Spec spec) {
+    if (spec == EventSpec.EPSILON || spec instanceof InternalEventSpec) {
+      return;
+    }
+    if (spec instanceof SingleEventSpec) {
+      observedTypes.add(((SingleEventSpec) spec).getEventType());
+    } else if (spec instanceof MultiEventSpec) {
+      observedTypes.addAll(((MultiEventSpec) spec).getEventTypes());
+    } else if (spec instanceof FaultSpec) {
+      observedTypes.add(Fault.class);
+    } else {
+      observedTypes.add(KompicsEvent.class); // unknown spec, observes every event
+    }
+  }
+
+  void setSoakMode(int traceSize) {
+    recorder = new FlightRecorder(traceSize);
+    soakMode = true;
+  }
+
+  FlightRecorder getFlightRecorder() {
+    return recorder;
+  }
+
+  // logs the most recent steps leading to the failure
+  void reportFailure() {
+    if (recorder.size() > 0) {
+      logger.error("{}", recorder.render(specsById));
     }
-    return action;
+  }
+
+  void setTransitionCacheSize(int capacity) {
+    dfa = new DFACache<Step>(capacity);
+  }
+
+  DFACache<?> getTransitionCache() {
+    return dfa;
   }
 
   void addSpec(Spec spec) {
@@ -129,6 +274,33 @@ class NFA {
     currentFA.addFA(child);
   }
 
+  void within(long withinNanos) {
+    FA last = currentFA.lastChild();
+    if (!(last instanceof BaseFA) || ((BaseFA) last).spec instanceof InternalEventSpec) {
+      throw new IllegalStateException("within must follow an expected event");
+    }
+    deadlines();
+    ((BaseFA) last).withinNanos = withinNanos;
+  }
+
+  void within(Block block, long withinNanos) {
+    block.setDeadline(withinNanos, deadlines());
+  }
+
+  private DeadlineWheel deadlines() {
+    if (dfa != null) {
+      throw new IllegalStateException("Deadlines are not supported with a transition cache");
+    }
+    if (deadlines == null) {
+      deadlines = new DeadlineWheel();
+    }
+    return deadlines;
+  }
+
+  DeadlineWheel getDeadlines() {
+    return deadlines;
+  }
+
   void either(Block block) {
     currentFA = new ConditionalFA(block);
     previousFA.push(currentFA);
@@ -149,35 +321,204 @@ class NFA {
     BaseFA finalFA = new BaseFA(repeatMain.block);
     finalFA.startState.isFinalState = true;
     repeatMain.build(finalFA);
-    currentStates = new HashSet<State>(repeatMain.startState.eclosure());
-    logger.debug("start state is {}", currentStates);
-    for (State s : currentStates) {
-      logger.debug("{}", s.show());
+
+    // precompute e-closures and internal transitions of every state
+    for (State state : statesById) {
+      state.compile();
+      state.assignSpecIds();
+      if (state.isFinalState) {
+        finalStates.set(state.id);
+      }
+      if (state.withinNanos > 0) {
+        deadlineStates.set(state.id);
+      }
+    }
+    collectDeadStates();
+    collectObservedTypes();
+    logSteps = !soakMode && logger.isDebugEnabled();
+
+    BitSet startStates = repeatMain.startState.closure;
+    logger.debug("start state is {}", startStates);
+    for (int i = startStates.nextSetBit(0); i >= 0; i = startStates.nextSetBit(i + 1)) {
+      logger.debug("{}", statesById.get(i).show());
     }
     logger.debug("final state is {}", finalFA.startState);
   }
 
+  // starts a run of the built automaton in its start state with a new run state,
+  // the automaton and cached transitions are shared by all runs
+  void startRun() {
+    cancelDeadlines();
+    run = new Run();
+    enterStartState();
+  }
+
+  // measurement of the assertion in the current run, null unless its block is being executed
+  BlockAssertion.Measurement measurementOf(BlockAssertion assertion) {
+    return run == null? null : run.measurements.get(assertion);
+  }
+
+  LatencyTracker.Pending pendingRequests() {
+    return run.pendingRequests;
+  }
+
+  // the deadlines armed by the current run no longer apply
+  void cancelDeadlines() {
+    if (deadlines != null) {
+      deadlines.clear();
+    }
+  }
+
+  private void enterStartState() {
+    if (dfa != null) {
+      nextStates.clear();
+      nextStates.set(repeatMain.startState.id);
+      run.currentNode = nodeFor(nextStates);
+      run.currentStates = run.currentNode.states;
+    } else {
+      run.currentStates.clear();
+      run.currentStates.or(repeatMain.startState.closure);
+      armDeadlines();
+    }
+  }
+
   boolean isInFinalState() {
-    for (State state : currentStates) {
-      if (state.isFinalState) {
+    return run.currentStates.intersects(finalStates);
+  }
+
+  // true if some current state can still reach a final state
+  boolean hasLiveThreads() {
+    for (int i = run.currentStates.nextSetBit(0); i >= 0; i = run.currentStates.nextSetBit(i + 1)) {
+      if (!deadStates.get(i)) {
         return true;
       }
     }
     return false;
   }
 
+  private void collectDeadStates() {
+    BitSet live = new BitSet();
+    live.or(finalStates);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (State state : statesById) {
+        if (!live.get(state.id) && state.canReach(live)) {
+          live.set(state.id);
+          changed = true;
+        }
+      }
+    }
+    deadStates.set(0, statesById.size());
+    deadStates.andNot(live);
+  }
+
+  // fails the threads whose deadline passed, returns the number of missed deadlines
+  int expireDeadlines() {
+    if (deadlines == null || deadlines.isEmpty()) {
+      return 0;
+    }
+    long now = System.nanoTime();
+    if (!deadlines.advance(now)) {
+      return 0;
+    }
+
+    BitSet failed = new BitSet();
+    int missed = 0;
+    for (DeadlineWheel.Deadline deadline : deadlines.takeExpired()) {
+      long withinMS = TimeUnit.NANOSECONDS.toMillis(deadline.timeoutNanos());
+      if (deadline.owner instanceof State) {
+        State state = (State) deadline.owner;
+        if (run.stateDeadlines[state.id] != deadline) {
+          continue; // the state was left after the deadline passed
+        }
+        run.stateDeadlines[state.id] = null;
+        failed.set(state.id);
+        recorder.record(FlightRecorder.FAILED, state.id, state.deadlineSpecId);
+        logger.error("{}: expected {} within {} ms, overdue by {}",
+            state, state.deadlineSpec, withinMS, deadline.overdue(now));
+      } else {
+        Block.Progress progress = (Block.Progress) deadline.owner;
+        if (!progress.isCurrentDeadline(deadline)) {
+          continue;
+        }
+        Block block = progress.block();
+        for (int i = run.currentStates.nextSetBit(0); i >= 0; i = run.currentStates.nextSetBit(i + 1)) {
+          if (isWithin(statesById.get(i), block)) {
+            failed.set(i);
+            recorder.record(FlightRecorder.FAILED, i);
+          }
+        }
+        logger.error("{}: iteration did not complete within {} ms, overdue by {}",
+            block, withinMS, deadline.overdue(now));
+      }
+      missed++;
+    }
+
+    if (missed > 0) {
+      nextStates.clear();
+      nextStates.or(run.currentStates);
+      nextStates.andNot(failed);
+      updateCurrentState(nextStates, failed);
+    }
+    return missed;
+  }
+
+  private boolean isWithin(State state, Block block) {
+    for (Block b = state.block; b != null; b = b.previousBlock) {
+      if (b == block) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void armDeadlines() {
+    for (int i = deadlineStates.nextSetBit(0); i >= 0; i = deadlineStates.nextSetBit(i + 1)) {
+      State state = statesById.get(i);
+      DeadlineWheel.Deadline deadline = run.stateDeadlines[i];
+      if (run.currentStates.get(i)) {
+        if (deadline == null) {
+          run.stateDeadlines[i] = deadlines.schedule(state, state.withinNanos);
+        }
+      } else if (deadline != null) {
+        deadlines.cancel(deadline);
+        run.stateDeadlines[i] = null;
+      }
+    }
+  }
+
   boolean doTransition(EventSpec receivedSpec) {
-    logger.debug("{}: received event {}", currentStates, receivedSpec);
+    if (logSteps) {
+      logger.debug("{}: received event {}", run.currentStates, receivedSpec);
+    }
+    if (receivedSpec != null) {
+      recorder.record(FlightRecorder.RECEIVED, FlightRecorder.NONE, FlightRecorder.NONE, receivedSpec.getEvent().getClass());
+    }
     while (true) {
       tryInternalEventTransitions();
+      if (run.currentStates.isEmpty()) {
+        // every thread failed an internal event
+        return false;
+      }
 
-      Set<State> nextStates = new HashSet<State>();
+      nextStates.clear();
+      int result = NO_TRANSITION;
       if (receivedSpec != null) {
-        tryStateTransitions(receivedSpec, nextStates);
+        result = tryStateTransitions(receivedSpec, nextStates);
       }
 
       if (!nextStates.isEmpty()) {
+        if (!hasLiveThreads()) {
+          // fail now instead of waiting for more events
+          logger.error("No thread can reach a final state after {}", receivedSpec);
+          return false;
+        }
         return true;
+      } else if ((result & DISALLOWED) != 0) {
+        // no other thread took the event
+        logger.error("Received disallowed event {}", receivedSpec);
+        return false;
       } else {
         // check if any current state is an internal action
         // if found kill those that aren't and retry handle received spec
@@ -207,36 +548,131 @@ class NFA {
         logger.debug("No event was received");
       } else {
         logger.error("No transitions found for {}", receivedSpec);
-        logger.debug("Last state was {}", currentStates);
+        logger.debug("Last state was {}", run.currentStates);
+        Class<?> eventType = receivedSpec.getEvent().getClass();
+        for (int i = run.currentStates.nextSetBit(0); i >= 0; i = run.currentStates.nextSetBit(i + 1)) {
+          recorder.record(FlightRecorder.FAILED, i, FlightRecorder.NONE, eventType);
+        }
       }
       return false;
     }
   }
 
-  private void tryStateTransitions(EventSpec receivedSpec, Set<State> nextStates) {
-    Set<Transition> transitions = new HashSet<Transition>();
+  // threads that disallow the event are not continued
+  private int tryStateTransitions(EventSpec receivedSpec, BitSet nextStates) {
+    int result = NO_TRANSITION;
+    Step step = null;
     // for each current state, get next state for spec
-    for (State state : currentStates) {
-      Collection<Transition> t = state.getTransition(receivedSpec);
-      for (Transition transition : t) {
-        nextStates.add(transition.nextState);
-        transitions.add(transition);
+    if (dfa == null) {
+      EventKey key = receivedSpec.getKey();
+      for (int i = run.currentStates.nextSetBit(0); i >= 0; i = run.currentStates.nextSetBit(i + 1)) {
+        State state = statesById.get(i);
+        result |= state.getTransition(receivedSpec, state.candidatesFor(key), nextStates);
+      }
+    } else {
+      step = cachedStep(receivedSpec);
+      if (step.compiled) {
+        long signature = step.signature(receivedSpec);
+        Outcome outcome = step.outcome(signature);
+        if (outcome != null) {
+          dfa.hit();
+          return replay(outcome, receivedSpec, nextStates);
+        }
+        capturing = new Outcome(signature);
+      }
+      dfa.miss();
+      for (int i = 0; i < step.states.length; i++) {
+        State state = step.states[i];
+        result |= state.getTransition(receivedSpec, step.candidates[i], nextStates);
       }
     }
 
     if (!nextStates.isEmpty()) {
-      //logger.debug("{} some transitions were found from current state", currentStates);
+      //logger.debug("{} some transitions were found from current state", run.currentStates);
       // kill threads without transitions and set new current states to next states
       updateCurrentState(nextStates);
 
       // handle received spec at most once
-      for (Transition tr : transitions) {
-        if (tr.handle) {
-          receivedSpec.handle();
-          return;
-        }
+      if ((result & HANDLE_TRANSITION) == HANDLE_TRANSITION) {
+        receivedSpec.handle();
       }
     }
+    if (capturing != null) {
+      capturing.complete(result, nextStates, run.currentNode);
+      step.put(capturing);
+      capturing = null;
+    }
+    return result;
+  }
+
+  private Step cachedStep(EventSpec receivedSpec) {
+    EventKey key = receivedSpec.getKey();
+    Step step = run.currentNode.get(key);
+    if (step == null) {
+      step = new Step(run.currentNode, key);
+      run.currentNode.put(key, step);
+    }
+    return step;
+  }
+
+  // replays the cached outcome of a compiled step instead of simulating the NFA
+  private int replay(Outcome outcome, EventSpec receivedSpec, BitSet nextStates) {
+    Class<?> eventType = receivedSpec.getEvent().getClass();
+    int[] records = outcome.records;
+    for (int i = 0; i < outcome.recordCount; i += 3) {
+      recorder.record(records[i], records[i + 1], records[i + 2], eventType);
+    }
+    for (int i = 0; i < outcome.inits.size(); i++) {
+      outcome.inits.get(i).runBlockInits();
+    }
+    if (outcome.nextStates.isEmpty()) {
+      return outcome.result;
+    }
+    nextStates.or(outcome.nextStates);
+    for (int i = nextStates.nextSetBit(0); i >= 0; i = nextStates.nextSetBit(i + 1)) {
+      recorder.record(FlightRecorder.ENTERED, i);
+    }
+    for (int i = 0; i < outcome.resets.size(); i++) {
+      State state = outcome.resets.get(i);
+      recorder.record(FlightRecorder.RESET, state.id);
+      run.progressOf(state.block).reset();
+    }
+    if (outcome.next.isDiscarded()) {
+      outcome.next = nodeFor(outcome.nextStates);
+    }
+    run.currentNode = outcome.next;
+    run.currentStates = run.currentNode.states;
+    if ((outcome.result & HANDLE_TRANSITION) == HANDLE_TRANSITION) {
+      receivedSpec.handle();
+    }
+    return outcome.result;
+  }
+
+  private void recordStep(int kind, int state, int spec, EventSpec receivedSpec) {
+    recorder.record(kind, state, spec, receivedSpec.getEvent().getClass());
+    if (capturing != null) {
+      capturing.record(kind, state, spec);
+    }
+  }
+
+  // faults are the only candidates besides single event specs that are matched statelessly
+  private static boolean matches(Spec spec, EventSpec receivedSpec) {
+    if (spec instanceof FaultSpec) {
+      return ((FaultSpec) spec).match(receivedSpec);
+    }
+    return ((SingleEventSpec) spec).match(receivedSpec);
+  }
+
+  private DFACache.Node<Step> nodeFor(BitSet kernel) {
+    DFACache.Node<Step> node = dfa.get(kernel);
+    if (node == null) {
+      BitSet states = new BitSet();
+      for (int i = kernel.nextSetBit(0); i >= 0; i = kernel.nextSetBit(i + 1)) {
+        states.or(statesById.get(i).closure);
+      }
+      node = dfa.put(kernel, states);
+    }
+    return node;
   }
 
   private boolean tryDefaultActions(EventSpec receivedSpec) {
@@ -247,9 +683,11 @@ class NFA {
     }
 
     //logger.debug("default action {}", action));
+    recorder.record(FlightRecorder.DEFAULT_ACTION, FlightRecorder.NONE, FlightRecorder.NONE,
+        receivedSpec.getEvent().getClass());
     switch (action) {
       case FAIL:
-        logger.debug("Received unwanted event {} at state {}", receivedSpec, currentStates);
+        logger.debug("Received unwanted event {} at state {}", receivedSpec, run.currentStates);
         return false;
       case HANDLE:
         receivedSpec.handle();
@@ -258,26 +696,23 @@ class NFA {
     }
   }
 
-  private void forceInternalEventTransitions(Set<State> nextStates) {
+  private void forceInternalEventTransitions(BitSet nextStates) {
     assert nextStates.isEmpty();
-    for (State state : currentStates) {
+    for (int i = run.currentStates.nextSetBit(0); i >= 0; i = run.currentStates.nextSetBit(i + 1)) {
+      State state = statesById.get(i);
       if (state.canPerformInternalTransition()) {
-        Collection<Transition> transitions = state.doInternalEventTransition();
-        assert !transitions.isEmpty();
-        for (Transition t : transitions) {
-          nextStates.add(t.nextState);
-        }
+        state.doInternalEventTransition(nextStates);
         //return;
       }
     }
   }
 
   void tryInternalEventTransitions() {
-    //logger.debug("{}: trying internal event", currentStates);
-    while (true) {
+    //logger.debug("{}: trying internal event", run.currentStates);
+    while (!run.currentStates.isEmpty()) {
       // if some thread in the NFA expects an event, do nothing
-      for (State state : currentStates) {
-        if (!state.canPerformInternalTransition()) {
+      for (int i = run.currentStates.nextSetBit(0); i >= 0; i = run.currentStates.nextSetBit(i + 1)) {
+        if (!statesById.get(i).canPerformInternalTransition()) {
           //logger.debug("state {} has no internal event. returning", state);
           return;
         }
@@ -285,32 +720,37 @@ class NFA {
 
       // all current states have internal event specs (trigger, inspect etc) -
       // perform them
-      // if so, non-singular set currentStates implies an ambiguous test specification
-      Set<State> nextStates = new HashSet<State>();
-      for (State state : currentStates) {
+      // if so, non-singular set run.currentStates implies an ambiguous test specification
+      nextStates.clear();
+      for (int i = run.currentStates.nextSetBit(0); i >= 0; i = run.currentStates.nextSetBit(i + 1)) {
         //logger.debug("{} performing internal transition", state);
-        Collection<Transition> transitions = state.doInternalEventTransition();
-        assert !transitions.isEmpty();
-        for (Transition t : transitions) {
-          nextStates.add(t.nextState);
-        }
+        statesById.get(i).doInternalEventTransition(nextStates);
       }
-      assert !nextStates.isEmpty();
       //logger.debug("all states have internal transitions");
       updateCurrentState(nextStates);
     }
   }
 
-  private void updateCurrentState(Set<State> nextStates) {
-    logger.debug("{}: new state is {}", currentStates, nextStates);
+  private void updateCurrentState(BitSet nextStates) {
+    updateCurrentState(nextStates, null);
+  }
+
+  // failed states are not re-entered through the e-closures of the remaining states
+  private void updateCurrentState(BitSet nextStates, BitSet failed) {
+    if (logSteps) {
+      logger.debug("{}: new state is {}", run.currentStates, nextStates);
+    }
+    for (int i = nextStates.nextSetBit(0); i >= 0; i = nextStates.nextSetBit(i + 1)) {
+      recorder.record(FlightRecorder.ENTERED, i);
+    }
 
     // recompute active blocks
     activeBlocks.clear();
 
     // reset discontinued blocks
     Block block;
-    for (State state : nextStates) {
-      block = state.block;
+    for (int i = nextStates.nextSetBit(0); i >= 0; i = nextStates.nextSetBit(i + 1)) {
+      block = statesById.get(i).block;
       while (block != null && !activeBlocks.contains(block)) {
         activeBlocks.add(block);
         block = block.previousBlock;
@@ -318,19 +758,44 @@ class NFA {
     }
     //logger.debug("active blocks = {}", activeBlocks);
 
-    for (State state : currentStates) {
-      if (!nextStates.contains(state) && !activeBlocks.contains(state.block)) {
-        logger.debug("reseting {}, for state {}", state.block, state);
-        state.block.reset();
+    for (int i = run.currentStates.nextSetBit(0); i >= 0; i = run.currentStates.nextSetBit(i + 1)) {
+      State state = statesById.get(i);
+      if (!nextStates.get(i) && !activeBlocks.contains(state.block)) {
+        if (logSteps) {
+          logger.debug("reseting {}, for state {}", state.block, state);
+        }
+        recorder.record(FlightRecorder.RESET, i);
+        run.progressOf(state.block).reset();
+        if (capturing != null) {
+          capturing.resets.add(state);
+        }
       }
     }
 
     // update current state
-    currentStates.clear();
-    for (State state : nextStates) {
-      assert !state.eclosure().isEmpty();
-      currentStates.addAll(state.eclosure());
+    if (dfa != null) {
+      run.currentNode = nodeFor(nextStates);
+      run.currentStates = run.currentNode.states;
+      return;
+    }
+    run.currentStates.clear();
+    for (int i = nextStates.nextSetBit(0); i >= 0; i = nextStates.nextSetBit(i + 1)) {
+      run.currentStates.or(statesById.get(i).closure);
+    }
+    if (failed != null) {
+      run.currentStates.andNot(failed);
+    }
+    armDeadlines();
+  }
+
+  private int specId(Spec spec) {
+    Integer id = specIds.get(spec);
+    if (id == null) {
+      id = specsById.size();
+      specsById.add(spec);
+      specIds.put(spec, id);
     }
+    return id;
   }
 
   /**
@@ -341,6 +806,7 @@ class NFA {
 
   private class BaseFA extends FA{
     Spec spec;
+    long withinNanos;
 
     BaseFA(Block block) {
       super(block);
@@ -351,6 +817,10 @@ class NFA {
     void build(FA finalFA) {
       assert spec != null;
       startState.addTransition(new Transition(spec, finalFA.startState, true));
+      if (withinNanos > 0) {
+        startState.withinNanos = withinNanos;
+        startState.deadlineSpec = spec;
+      }
       if (spec instanceof InternalEventSpec) {
         State s = startState;
         s.internalEventSpec = (InternalEventSpec) spec;
@@ -504,6 +974,12 @@ class NFA {
       }
     }
 
+    @Override
+    FA lastChild() {
+      List<FA> branch = inEitherBlock? eitherBranch : orBranch;
+      return branch.isEmpty()? null : branch.get(branch.size() - 1);
+    }
+
     @Override
     void build(FA finalFA) {
       buildBranch(finalFA, eitherBranch);
@@ -562,6 +1038,10 @@ class NFA {
       children.add(childFA) ;
     }
 
+    FA lastChild() {
+      return children.isEmpty()? null : children.get(children.size() - 1);
+    }
+
     abstract void end();
   }
 
@@ -579,7 +1059,23 @@ class NFA {
     InternalEventSpec internalEventSpec;
     List<Block> parentBlocks = new LinkedList<Block>();
 
+    // the expected event must be matched within this time of entering the state
+    long withinNanos;
+    Spec deadlineSpec;
+    int deadlineSpecId = FlightRecorder.NONE;
+    int internalSpecId = FlightRecorder.NONE;
+
     Set<State> eclosure;
+    // precomputed at build time
+    BitSet closure;
+    private List<Transition> internalTransitions;
+
+    // transitions indexed by (port, direction, event class) of expected events
+    private Map<EventKey, List<Transition>> index;
+    // predicate, fault and multi-event specs are matched against every event
+    private List<Transition> fallback;
+    // resolved candidates per received (port, direction, event class)
+    private Map<EventKey, Transition[]> dispatch;
 
     Collection<Transition> loopTransition;
     Collection<Transition> exitTransition;
@@ -588,93 +1084,236 @@ class NFA {
     State(int number, Block block) {
       this.block = block;
       id = number;
+      assert statesById.size() == id;
+      statesById.add(this);
+    }
+
+    void compile() {
+      closure = new BitSet();
+      for (State state : eclosure()) {
+        closure.set(state.id);
+      }
+      if (internalEventSpec != null) {
+        internalTransitions = new ArrayList<Transition>(transitions.get(internalEventSpec));
+        assert !internalTransitions.isEmpty();
+      }
+    }
+
+    boolean canReach(BitSet states) {
+      return canReach(transitions.values(), states) || canReach(loopTransition, states) ||
+             canReach(exitTransition, states) || canReach(selfTransition, states);
+    }
+
+    private boolean canReach(Collection<Transition> next, BitSet states) {
+      if (next != null) {
+        for (Transition transition : next) {
+          if (states.get(transition.nextState.id)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    void assignSpecIds() {
+      for (Transition transition : transitions.values()) {
+        if (transition.spec != null && transition.spec != EventSpec.EPSILON) {
+          transition.specId = specId(transition.spec);
+        }
+      }
+      if (internalEventSpec != null) {
+        internalSpecId = specId(internalEventSpec);
+      }
+      if (deadlineSpec != null) {
+        deadlineSpecId = specId(deadlineSpec);
+      }
     }
 
     void addTransition(Transition t) {
       transitions.put(t.spec, t);
+      dispatch = null;
     }
 
-    Collection<Transition> getTransition(EventSpec receivedSpec) {
-      Collection<Transition> t = new HashSet<Transition>();
+    Transition[] candidatesFor(EventKey key) {
+      if (dispatch == null) {
+        buildIndex();
+      }
+      Transition[] candidates = dispatch.get(key);
+      if (candidates == null) {
+        candidates = resolveCandidates(key);
+        dispatch.put(key, candidates);
+      }
+      return candidates;
+    }
+
+    private void buildIndex() {
+      index = new LinkedHashMap<EventKey, List<Transition>>();
+      fallback = new ArrayList<Transition>();
+      dispatch = new HashMap<EventKey, Transition[]>();
+      for (Transition transition : transitions.values()) {
+        Spec spec = transition.spec;
+        if (spec == EventSpec.EPSILON || spec instanceof InternalEventSpec) {
+          continue; // never matched by received events
+        }
+        if (spec instanceof EventSpec) {
+          EventKey key = ((EventSpec) spec).getKey();
+          List<Transition> indexed = index.get(key);
+          if (indexed == null) {
+            indexed = new ArrayList<Transition>();
+            index.put(key, indexed);
+          }
+          indexed.add(transition);
+        } else {
+          fallback.add(transition);
+        }
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Transition[] resolveCandidates(EventKey key) {
+      List<Transition> candidates = new ArrayList<Transition>();
+      // expected events may be equal to received events of a subclass
+      for (Class<?> type = key.eventType;
+           type != null && KompicsEvent.class.isAssignableFrom(type);
+           type = type.getSuperclass()) {
+        EventKey expectedKey = new EventKey(key.port, key.direction, (Class<? extends KompicsEvent>) type);
+        List<Transition> indexed = index.get(expectedKey);
+        if (indexed != null) {
+          candidates.addAll(indexed);
+        }
+      }
+      // as well as to received events of a superclass, see resolvePassThroughAction
+      for (Map.Entry<EventKey, List<Transition>> entry : index.entrySet()) {
+        EventKey expectedKey = entry.getKey();
+        if (expectedKey.eventType != key.eventType &&
+            key.eventType.isAssignableFrom(expectedKey.eventType) &&
+            expectedKey.direction == key.direction && expectedKey.port.equals(key.port)) {
+          candidates.addAll(entry.getValue());
+        }
+      }
+
+      for (Transition transition : fallback) {
+        Spec spec = transition.spec;
+        if (spec instanceof PredicateSpec && ((PredicateSpec) spec).eventType != key.eventType) {
+          continue;
+        }
+        if (spec instanceof FaultSpec && !Fault.class.isAssignableFrom(key.eventType)) {
+          continue;
+        }
+        candidates.add(transition);
+      }
+      return candidates.toArray(new Transition[candidates.size()]);
+    }
+
+    int getTransition(EventSpec receivedSpec, Transition[] candidates, BitSet nextStates) {
+      int result = NO_TRANSITION;
 
       // don't transition out of completed loop on event
-      if (isEndOfLoop() && !block.hasPendingEvents()) {
-        return t;
+      Block.Progress progress = run.progressOf(block);
+      if (isEndOfLoop() && !progress.hasPendingEvents()) {
+        return result;
       }
 
       // blockExpect
-      if (block.handle(receivedSpec)) {
-        t.add(new Transition(receivedSpec, this, true)); // handle received event
+      if (progress.handle(receivedSpec)) {
+        nextStates.set(id);
+        result = HANDLE_TRANSITION; // handle received event
+        recorder.record(FlightRecorder.HANDLED_BY_BLOCK, id, FlightRecorder.NONE, receivedSpec.getEvent().getClass());
       }
 
       // if block doesn't handle, consider other transitions
-      if (t.isEmpty()) {
-        for (Map.Entry<Spec, Transition> entry : transitions.entries()) {
-          Spec spec = entry.getKey();
-          if (spec.match(receivedSpec)) {
-            if (spec instanceof MultiEventSpec) {
+      if (result == NO_TRANSITION) {
+        for (Transition transition : candidates) {
+          Spec spec = transition.spec;
+          if (spec instanceof MultiEventSpec) {
+            MultiEventSpec.Progress group = run.specProgress[transition.specId];
+            if (group.match(receivedSpec)) {
+              recordStep(FlightRecorder.MATCHED, id, transition.specId, receivedSpec);
               State nextState = this;
-              if (((MultiEventSpec) spec).isComplete()) {
-                nextState = entry.getValue().nextState;
+              if (group.isComplete()) {
+                nextState = transition.nextState;
               }
-              t.add(new Transition(receivedSpec, nextState));
-            } else {
-              t.add(entry.getValue());
+              nextStates.set(nextState.id);
+              result |= TRANSITION;
             }
+          } else if (matches(spec, receivedSpec)) {
+            recordStep(FlightRecorder.MATCHED, id, transition.specId, receivedSpec);
+            nextStates.set(transition.nextState.id);
+            result |= transition.handle? HANDLE_TRANSITION : TRANSITION;
           }
         }
       }
 
       // allow, disallow, drop transitions
-      if (t.isEmpty()) {
-        Transition blockTransition = handleWithBlockTransitions(receivedSpec);
-        if (blockTransition != null) {
-          t.add(blockTransition);
-        }
+      if (result == NO_TRANSITION) {
+        result = handleWithBlockTransitions(receivedSpec, nextStates);
       }
 
-      if (isStartOfLoop() && !t.isEmpty()) {
+      if (isStartOfLoop() && (result & TRANSITION) != 0) {
+        if (capturing != null) {
+          capturing.inits.add(this);
+        }
         runBlockInits();
       }
 
-      return t;
+      return result;
     }
 
-    private Transition handleWithBlockTransitions(EventSpec receivedSpec) {
-      logger.debug("{}: looking up {} with constraints {}", this, receivedSpec, block.status());
-      if (block.getAllowedSpecs().contains(receivedSpec)) {
-        return new Transition(receivedSpec, this, true);
+    private int handleWithBlockTransitions(EventSpec receivedSpec, BitSet nextStates) {
+      if (block.isAllowed(receivedSpec)) {
+        nextStates.set(id);
+        recordConstraint(FlightRecorder.ALLOWED, receivedSpec);
+        return HANDLE_TRANSITION;
       }
-      if (block.getDroppedSpecs().contains(receivedSpec)) {
-        return new Transition(receivedSpec, this);
+      if (block.isDropped(receivedSpec)) {
+        nextStates.set(id);
+        recordConstraint(FlightRecorder.DROPPED, receivedSpec);
+        return TRANSITION;
       }
-      if (block.getDisallowedSpecs().contains(receivedSpec)) {
-        return new Transition(receivedSpec, errorState);
+      if (block.isDisallowed(receivedSpec)) {
+        recordConstraint(FlightRecorder.DISALLOWED, receivedSpec);
+        return DISALLOWED;
       }
-      return null;
+      return NO_TRANSITION;
+    }
+
+    private void recordConstraint(int kind, EventSpec receivedSpec) {
+      if (logSteps) {
+        logger.debug("{}: looking up {} with constraints {}", this, receivedSpec, run.progressOf(block).status());
+      }
+      recordStep(kind, id, FlightRecorder.NONE, receivedSpec);
     }
 
-    Collection<Transition> doInternalEventTransition() {
+    void doInternalEventTransition(BitSet nextStates) {
       // if start state is interaction etc (run block init before performing event)
       if (isStartOfLoop()) {
         runBlockInits();
       }
 
       // trigger, inspect, etc
+      Collection<Transition> next = null;
       if (internalEventSpec != null) {
-        internalEventSpec.performInternalEvent();
-        return transitions.get(internalEventSpec);
+        String error = internalEventSpec.performInternalEvent();
+        if (error != null) {
+          // this thread of the NFA fails
+          logger.error("{}: {}", internalEventSpec, error);
+          recorder.record(FlightRecorder.FAILED, id, internalSpecId);
+          return;
+        }
+        recorder.record(FlightRecorder.PERFORMED, id, internalSpecId);
+        next = internalTransitions;
+      } else if (isEndOfLoop()) {
+        next = getLoopEndTransition();
       }
-
-      if (isEndOfLoop()) {
-        return getLoopEndTransition();
+      assert next != null;
+      for (Transition transition : next) {
+        nextStates.set(transition.nextState.id);
       }
-      return null;
     }
 
     private boolean canPerformInternalTransition() {
       if (isEndOfLoop()) { // if block is complete, loop back transition is possible
-        return !block.hasPendingEvents();
+        return !run.progressOf(block).hasPendingEvents();
       }
       return internalEventSpec != null;
     }
@@ -682,11 +1321,12 @@ class NFA {
     private void runBlockInits() {
       boolean canRunInit = false; // parent block is closed -> nested blocks are closed
       for (Block parent : parentBlocks) {
+        boolean parentCanRunInit = run.progressOf(parent).canRunInit();
         if (canRunInit) {
-          assert parent.canRunInit();
+          assert parentCanRunInit;
         }
 
-        if (parent.canRunInit()) {
+        if (parentCanRunInit) {
           canRunInit = true;
           runInitializeFor(parent);
         }
@@ -696,14 +1336,23 @@ class NFA {
 
     private void runInitializeFor(Block block) {
       logger.trace("{}: running initialize() for block {}", this, block);
-      block.initialize();
+      Block.Progress progress = run.progressOf(block);
+      boolean entered = !progress.isOpen();
+      progress.initialize();
+      if (entered) {
+        run.startAssertions(block);
+      }
     }
 
     private Collection<Transition> getLoopEndTransition() {
-      if (!block.hasPendingEvents()) {
-        logger.debug("end{} count = {}", block, block.getCurrentCount());
+      Block.Progress progress = run.progressOf(block);
+      if (!progress.hasPendingEvents()) {
+        if (logSteps) {
+          logger.debug("end{} count = {}", block, progress.getCurrentCount());
+        }
+        recorder.record(FlightRecorder.ITERATION_COMPLETE, id);
 
-        block.iterationComplete(); // decrement loop count (for kleene closure disable block)
+        progress.iterationComplete(); // decrement loop count (for kleene closure disable block)
 
         assert loopTransition != null;
 
@@ -711,12 +1360,19 @@ class NFA {
           assert exitTransition != null;
         }
 
-        if (isKleeneEnd || (isRepeatEnd && block.hasMoreIterations())) {
+        if (isKleeneEnd || (isRepeatEnd && progress.hasMoreIterations())) {
           return loopTransition;
         } else {
+          String error = run.finishAssertions(block);
           // close block on exit
-          block.close();
+          progress.close();
 
+          if (error != null) {
+            // this thread of the NFA fails
+            logger.error("{}: {}", block, error);
+            recorder.record(FlightRecorder.FAILED, id);
+            return Collections.emptyList();
+          }
           return exitTransition;
         }
       }
@@ -781,10 +1437,270 @@ class NFA {
     }
   }
 
+  // mutable state of one run, a new run starts over without undoing the previous one
+  private class Run {
+    BitSet currentStates = new BitSet();
+    // compiled mode - node of the current states
+    DFACache.Node<Step> currentNode;
+    // armed deadlines of expected events by state id
+    final DeadlineWheel.Deadline[] stateDeadlines = new DeadlineWheel.Deadline[statesById.size()];
+    // progress of blocks by block id and of multi-event specs by spec id
+    private final Block.Progress[] blockProgress = new Block.Progress[blocks.size()];
+    final MultiEventSpec.Progress[] specProgress = new MultiEventSpec.Progress[specsById.size()];
+    // measurements of the assertions of the blocks being executed
+    final Map<BlockAssertion, BlockAssertion.Measurement> measurements =
+        new IdentityHashMap<BlockAssertion, BlockAssertion.Measurement>();
+    // requests waiting for a response to measure their latency
+    final LatencyTracker.Pending pendingRequests = new LatencyTracker.Pending();
+
+    Run() {
+      for (Block block : blocks) {
+        newProgress(block);
+      }
+      for (int i = 0; i < specsById.size(); i++) {
+        Spec spec = specsById.get(i);
+        if (spec instanceof MultiEventSpec) {
+          specProgress[i] = ((MultiEventSpec) spec).newProgress();
+        }
+      }
+    }
+
+    // blocks refer to the progress of their enclosing block
+    private Block.Progress newProgress(Block block) {
+      if (block == null) {
+        return null;
+      }
+      Block.Progress progress = blockProgress[block.id];
+      if (progress == null) {
+        progress = block.newProgress(newProgress(block.previousBlock));
+        blockProgress[block.id] = progress;
+      }
+      return progress;
+    }
+
+    Block.Progress progressOf(Block block) {
+      return blockProgress[block.id];
+    }
+
+    void startAssertions(Block block) {
+      for (BlockAssertion assertion : block.getAssertions()) {
+        measurements.put(assertion, assertion.start());
+      }
+    }
+
+    // returns the first failed assertion over the block's execution or null
+    String finishAssertions(Block block) {
+      String error = null;
+      for (BlockAssertion assertion : block.getAssertions()) {
+        BlockAssertion.Measurement measurement = measurements.remove(assertion);
+        String result = measurement == null? null : measurement.finish();
+        if (error == null) {
+          error = result;
+        }
+      }
+      return error;
+    }
+  }
+
+  private static class DefaultAction {
+    final Class<? extends KompicsEvent> eventType;
+    final Function<KompicsEvent, Action> function;
+    final Action action;
+
+    DefaultAction(Class<? extends KompicsEvent> eventType,
+                  Function<KompicsEvent, Action> function, Action action) {
+      this.eventType = eventType;
+      this.function = function;
+      this.action = action;
+    }
+
+    Action actionFor(KompicsEvent event) {
+      if (function == null) {
+        return action;
+      }
+      Action result = function.apply(event);
+      if (result == null) {
+        throw new NullPointerException(String.format("(default handler for %s returned null for event '%s')",
+            eventType, event));
+      }
+      return result;
+    }
+  }
+
+  // transitions of each state in a DFA node that can match events with a given key.
+  // A step is compiled unless a state depends on the progress of the run (blockExpect or multi-event specs):
+  // the received event is then only compared with the distinct candidate specs and block constraints
+  // of the node, and each combination of results is cached with its outcome, including the next node
+  private class Step {
+    final State[] states;
+    final Transition[][] candidates;
+    final boolean compiled;
+    private final DFACache.Node<Step> node;
+    private Spec[] specTests;
+    private Block[] blockTests;
+    // outcomes by signature, open addressing
+    private long[] signatures;
+    private Outcome[] outcomes;
+    private int outcomeCount;
+
+    Step(DFACache.Node<Step> node, EventKey key) {
+      this.node = node;
+      BitSet nodeStates = node.states;
+      states = new State[nodeStates.cardinality()];
+      candidates = new Transition[states.length][];
+      int index = 0;
+      for (int i = nodeStates.nextSetBit(0); i >= 0; i = nodeStates.nextSetBit(i + 1)) {
+        states[index] = statesById.get(i);
+        candidates[index] = states[index].candidatesFor(key);
+        index++;
+      }
+      compiled = compile();
+    }
+
+    private boolean compile() {
+      // distinct by identity, equal specs may still compare differently with the received event
+      Set<Spec> specs = Collections.newSetFromMap(new IdentityHashMap<Spec, Boolean>());
+      List<Spec> specTests = new ArrayList<Spec>();
+      Set<Block> blocks = new LinkedHashSet<Block>();
+      for (int i = 0; i < states.length; i++) {
+        for (Block block = states[i].block; block != null; block = block.previousBlock) {
+          if (!block.getExpectedSpecs().isEmpty()) {
+            return false;
+          }
+        }
+        for (Transition transition : candidates[i]) {
+          if (transition.spec instanceof MultiEventSpec) {
+            return false;
+          }
+          if (specs.add(transition.spec)) {
+            specTests.add(transition.spec);
+          }
+        }
+        Block block = states[i].block;
+        if (!block.getAllowedSpecs().isEmpty() || !block.getDroppedSpecs().isEmpty() ||
+            !block.getDisallowedSpecs().isEmpty()) {
+          blocks.add(block);
+        }
+      }
+      if (specs.size() + 3 * blocks.size() > Long.SIZE) {
+        return false;
+      }
+      this.specTests = specTests.toArray(new Spec[specTests.size()]);
+      blockTests = blocks.toArray(new Block[blocks.size()]);
+      signatures = new long[4];
+      outcomes = new Outcome[4];
+      return true;
+    }
+
+    // results of every comparison the NFA could make for the received event
+    long signature(EventSpec receivedSpec) {
+      long signature = 0;
+      int bit = 0;
+      for (Spec spec : specTests) {
+        if (matches(spec, receivedSpec)) {
+          signature |= 1L << bit;
+        }
+        bit++;
+      }
+      for (Block block : blockTests) {
+        if (block.isAllowed(receivedSpec)) {
+          signature |= 1L << bit;
+        }
+        if (block.isDropped(receivedSpec)) {
+          signature |= 1L << (bit + 1);
+        }
+        if (block.isDisallowed(receivedSpec)) {
+          signature |= 1L << (bit + 2);
+        }
+        bit += 3;
+      }
+      return signature;
+    }
+
+    Outcome outcome(long signature) {
+      int mask = outcomes.length - 1;
+      for (int i = slot(signature, mask); outcomes[i] != null; i = (i + 1) & mask) {
+        if (signatures[i] == signature) {
+          return outcomes[i];
+        }
+      }
+      return null;
+    }
+
+    void put(Outcome outcome) {
+      if (node.isDiscarded()) {
+        return;
+      }
+      if (2 * (outcomeCount + 1) > outcomes.length) {
+        long[] oldSignatures = signatures;
+        Outcome[] oldOutcomes = outcomes;
+        signatures = new long[2 * oldSignatures.length];
+        outcomes = new Outcome[2 * oldOutcomes.length];
+        for (int i = 0; i < oldOutcomes.length; i++) {
+          if (oldOutcomes[i] != null) {
+            insert(oldSignatures[i], oldOutcomes[i]);
+          }
+        }
+      }
+      insert(outcome.signature, outcome);
+      outcomeCount++;
+      node.addEntry();
+    }
+
+    private void insert(long signature, Outcome outcome) {
+      int mask = outcomes.length - 1;
+      int i = slot(signature, mask);
+      while (outcomes[i] != null) {
+        i = (i + 1) & mask;
+      }
+      signatures[i] = signature;
+      outcomes[i] = outcome;
+    }
+
+    private int slot(long signature, int mask) {
+      long hash = signature * 0x9E3779B97F4A7C15L;
+      return (int) (hash >>> 32) & mask;
+    }
+  }
+
+  // effect of a compiled step on the NFA for one signature of the received event
+  private class Outcome {
+    final long signature;
+    int result;
+    final BitSet nextStates = new BitSet();
+    DFACache.Node<Step> next;
+    // blocks to initialize and to reset in order
+    final List<State> inits = new ArrayList<State>();
+    final List<State> resets = new ArrayList<State>();
+    // flight recorder entries as (kind, state, spec) triples
+    int[] records = new int[0];
+    int recordCount;
+
+    Outcome(long signature) {
+      this.signature = signature;
+    }
+
+    void record(int kind, int state, int spec) {
+      if (recordCount + 3 > records.length) {
+        records = Arrays.copyOf(records, Math.max(6, 2 * records.length));
+      }
+      records[recordCount++] = kind;
+      records[recordCount++] = state;
+      records[recordCount++] = spec;
+    }
+
+    void complete(int result, BitSet nextStates, DFACache.Node<Step> next) {
+      this.result = result;
+      this.nextStates.or(nextStates);
+      this.next = next;
+    }
+  }
+
   private class Transition {
     final Spec spec;
     final State nextState;
     boolean handle;
+    int specId = FlightRecorder.NONE;
 
     Transition(Spec spec, State nextState) {
       this.spec = spec;
@@ -0,0 +1,37 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import se.sics.kompics.network.Msg;
+
+/**
+ * Decides when messages sent over the simulated network of a {@link TestContext} arrive.
+ * Calls are made in the order messages are sent, one at a time.
+ */
+public interface NetworkModel {
+
+  /**
+   * @param message the message being sent
+   * @param now current virtual time in milliseconds
+   * @return the virtual time in milliseconds until message is delivered, or a negative value to drop it
+   */
+  long deliveryDelay(Msg message, long now);
+}
@@ -51,7 +51,11 @@ class OutBoundHandler extends ProxyHandler {
       request.pushPathElement(proxy.getComponentCore());
     }
 
-    EventSpec eventSpec = proxy.getFsm().newEventSpec(event, sourcePort, Direction.OUT);
+    if (passThrough(event)) {
+      return;
+    }
+
+    EventSpec eventSpec = proxy.getFsm().newReceivedSpec(event, sourcePort, Direction.OUT);
     eventSpec.setHandler(this);
     eventQueue.offer(eventSpec);
   }
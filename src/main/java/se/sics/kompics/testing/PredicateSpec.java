@@ -41,6 +41,11 @@ class PredicateSpec implements SingleEventSpec{
     this.predicate = predicate;
   }
 
+  @Override
+  public Class<? extends KompicsEvent> getEventType() {
+    return eventType;
+  }
+
   @Override
   public boolean match(EventSpec receivedSpec) {
     KompicsEvent receivedEvent = receivedSpec.getEvent();
@@ -40,6 +40,18 @@ abstract class ProxyHandler extends Handler {
 
   abstract void doHandle(KompicsEvent event);
 
+  // handle or drop events that no spec observes without queueing them
+  boolean passThrough(KompicsEvent event) {
+    Action action = proxy.getFsm().passThroughAction(event);
+    if (action == null) {
+      return false;
+    }
+    if (action == Action.HANDLE) {
+      doHandle(event);
+    }
+    return true;
+  }
+
   static ProxyHandler faultHandler = new ProxyHandler() {
     @Override
     void doHandle(KompicsEvent event) { }
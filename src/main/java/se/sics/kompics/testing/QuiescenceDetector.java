@@ -0,0 +1,88 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import se.sics.kompics.Component;
+import se.sics.kompics.JavaComponent;
+
+import java.util.Collection;
+
+/**
+ * Decides whether the components taking part in a test have settled,
+ * that is, none of them has work scheduled or in progress and no load generator
+ * is still due to trigger events.
+ * Events triggered by a handler are enqueued at their destination before the
+ * handler's own work count is decremented, so the system is considered quiescent
+ * once two consecutive scans find all work counts at zero.
+ */
+class QuiescenceDetector {
+
+  private final Component proxy;
+  // the component under test and components created through the test context
+  private final Collection<Component> participants;
+  private final Collection<LoadGenerator> generators;
+  private boolean settled;
+
+  QuiescenceDetector(Component proxy, Collection<Component> participants, Collection<LoadGenerator> generators) {
+    this.proxy = proxy;
+    this.participants = participants;
+    this.generators = generators;
+  }
+
+  // called with an empty event queue
+  boolean isQuiescent() {
+    if (!isIdle()) {
+      settled = false;
+      return false;
+    }
+    if (!settled) {
+      settled = true; // confirm with the next scan
+      return false;
+    }
+    return true;
+  }
+
+  void reset() {
+    settled = false;
+  }
+
+  private boolean isIdle() {
+    if (!isIdle(proxy)) {
+      return false;
+    }
+    for (Component participant : participants) {
+      if (!isIdle(participant)) {
+        return false;
+      }
+    }
+    for (LoadGenerator generator : generators) {
+      if (generator.isRunning()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isIdle(Component component) {
+    // unknown work count for other component types
+    return component instanceof JavaComponent && ((JavaComponent) component).workCount.get() == 0;
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+// minimum rate of events with a given port, direction and class or subclass over the execution of a block
+class RateAssertion implements BlockAssertion {
+
+  final EventKey key;
+  private final double minPerSecond;
+
+  RateAssertion(EventKey key, double minPerSecond) {
+    if (!(minPerSecond > 0)) {
+      throw new IllegalArgumentException("minimum rate " + minPerSecond + " must be positive");
+    }
+    this.key = key;
+    this.minPerSecond = minPerSecond;
+  }
+
+  @Override
+  public Count start() {
+    return new Count();
+  }
+
+  // events counted over one execution of the block
+  class Count implements Measurement {
+    private final long startNanos = System.nanoTime();
+    private long count;
+
+    void increment() {
+      count++;
+    }
+
+    @Override
+    public String finish() {
+      long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+      double perSecond = count * 1e9 / elapsedNanos;
+      if (perSecond < minPerSecond) {
+        return String.format("rate of %s was %.1f/s (%d in %.3f ms), expected at least %.1f/s",
+            key, perSecond, count, elapsedNanos / 1e6, minPerSecond);
+      }
+      return null;
+    }
+  }
+}
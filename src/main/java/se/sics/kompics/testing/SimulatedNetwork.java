@@ -0,0 +1,88 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import se.sics.kompics.network.Address;
+import se.sics.kompics.network.Msg;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Routes messages between the {@link VirtualNetwork} components of a test by destination address.
+ * Messages are passed by reference and delivered by the virtual clock after the delay
+ * chosen by the network model.
+ */
+class SimulatedNetwork {
+
+  private final VirtualClock clock;
+  private NetworkModel model = new LinkModel(0);
+  private final ConcurrentMap<Address, VirtualNetwork> nodes = new ConcurrentHashMap<Address, VirtualNetwork>();
+
+  SimulatedNetwork(VirtualClock clock) {
+    this.clock = clock;
+  }
+
+  synchronized void setModel(NetworkModel model) {
+    this.model = model;
+  }
+
+  void register(Address address, VirtualNetwork node) {
+    if (nodes.putIfAbsent(address, node) != null) {
+      throw new IllegalArgumentException("A virtual network already exists for address " + address);
+    }
+  }
+
+  void send(Msg message) {
+    long delay;
+    synchronized (this) {
+      delay = model.deliveryDelay(message, clock.now());
+    }
+    if (delay < 0) {
+      TestContext.logger.trace("dropped message {}", message);
+      return;
+    }
+    clock.schedule(new Delivery(message), delay);
+  }
+
+  private class Delivery extends VirtualClock.Task {
+    final Msg message;
+
+    Delivery(Msg message) {
+      this.message = message;
+    }
+
+    @Override
+    void run() {
+      VirtualNetwork destination = nodes.get(message.getDestination());
+      if (destination == null) {
+        TestContext.logger.warn("no virtual network for destination of message {}", message);
+        return;
+      }
+      destination.deliver(message);
+    }
+
+    @Override
+    public String toString() {
+      return "Delivery(" + message + ")";
+    }
+  }
+}
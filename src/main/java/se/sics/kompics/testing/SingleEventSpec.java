@@ -20,4 +20,10 @@
  */
 package se.sics.kompics.testing;
 
-interface SingleEventSpec extends Spec{ }
+import se.sics.kompics.KompicsEvent;
+
+interface SingleEventSpec extends Spec{
+  boolean match(EventSpec receivedSpec);
+
+  Class<? extends KompicsEvent> getEventType();
+}
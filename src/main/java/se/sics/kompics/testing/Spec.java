@@ -20,6 +20,7 @@
  */
 package se.sics.kompics.testing;
 
+// transition label of the NFA, received events are matched by single event specs,
+// by the progress of multi-event specs in a run or not at all by internal events
 interface Spec {
-  boolean match(EventSpec receivedSpec);
 }
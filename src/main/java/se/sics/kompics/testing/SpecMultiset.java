@@ -0,0 +1,187 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Multiset of expected specs looked up by received events.
+ * Specs of events with a registered key extractor are bucketed by their key and
+ * are only matched by received events with the same key, all other specs are
+ * compared with every received event.
+ */
+class SpecMultiset<S extends SingleEventSpec> {
+
+  private final Map<Object, List<Entry<S>>> keyed = new HashMap<Object, List<Entry<S>>>();
+  private final List<Entry<S>> unkeyed = new ArrayList<Entry<S>>();
+  private int size;
+
+  SpecMultiset() { }
+
+  SpecMultiset(SpecMultiset<S> other) {
+    for (Map.Entry<Object, List<Entry<S>>> bucket : other.keyed.entrySet()) {
+      keyed.put(bucket.getKey(), copy(bucket.getValue()));
+    }
+    unkeyed.addAll(copy(other.unkeyed));
+    size = other.size;
+  }
+
+  // returns true if no equal spec was present
+  boolean add(S spec) {
+    List<Entry<S>> entries = entriesFor(spec, true);
+    size++;
+    for (Entry<S> entry : entries) {
+      if (spec == entry.spec || spec.equals(entry.spec)) {
+        return entry.count++ == 0;
+      }
+    }
+    entries.add(new Entry<S>(spec));
+    return true;
+  }
+
+  // removes all occurrences of a spec equal to the given spec
+  void removeAll(S spec) {
+    List<Entry<S>> entries = entriesFor(spec, false);
+    if (entries == null) {
+      return;
+    }
+    for (int i = 0; i < entries.size(); i++) {
+      Entry<S> entry = entries.get(i);
+      if (spec == entry.spec || spec.equals(entry.spec)) {
+        size -= entry.count;
+        entries.remove(i);
+        return;
+      }
+    }
+  }
+
+  boolean contains(EventSpec receivedSpec) {
+    return find(receivedSpec) != null;
+  }
+
+  // removes one occurrence of a spec matching the received event
+  boolean remove(EventSpec receivedSpec) {
+    Entry<S> entry = find(receivedSpec);
+    if (entry == null) {
+      return false;
+    }
+    entry.count--;
+    size--;
+    return true;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  void clear() {
+    keyed.clear();
+    unkeyed.clear();
+    size = 0;
+  }
+
+  Collection<S> specs() {
+    List<S> specs = new ArrayList<S>();
+    for (List<Entry<S>> bucket : keyed.values()) {
+      addSpecs(bucket, specs);
+    }
+    addSpecs(unkeyed, specs);
+    return specs;
+  }
+
+  private Entry<S> find(EventSpec receivedSpec) {
+    Object key = receivedSpec.getEventKey();
+    if (key != null) {
+      List<Entry<S>> bucket = keyed.get(key);
+      if (bucket != null) {
+        Entry<S> entry = find(receivedSpec, bucket);
+        if (entry != null) {
+          return entry;
+        }
+      }
+    }
+    return find(receivedSpec, unkeyed);
+  }
+
+  private Entry<S> find(EventSpec receivedSpec, List<Entry<S>> entries) {
+    // indexed, this is called for every received event
+    for (int i = 0; i < entries.size(); i++) {
+      Entry<S> entry = entries.get(i);
+      if (entry.count > 0 && receivedSpec.equals(entry.spec)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  private List<Entry<S>> entriesFor(S spec, boolean create) {
+    Object key = keyOf(spec);
+    if (key == null) {
+      return unkeyed;
+    }
+    List<Entry<S>> bucket = keyed.get(key);
+    if (bucket == null && create) {
+      bucket = new ArrayList<Entry<S>>(1);
+      keyed.put(key, bucket);
+    }
+    return bucket;
+  }
+
+  static Object keyOf(SingleEventSpec spec) {
+    return spec instanceof EventSpec? ((EventSpec) spec).getEventKey() : null;
+  }
+
+  private void addSpecs(List<Entry<S>> entries, List<S> specs) {
+    for (Entry<S> entry : entries) {
+      for (int i = 0; i < entry.count; i++) {
+        specs.add(entry.spec);
+      }
+    }
+  }
+
+  private List<Entry<S>> copy(List<Entry<S>> entries) {
+    List<Entry<S>> copy = new ArrayList<Entry<S>>(entries.size());
+    for (Entry<S> entry : entries) {
+      Entry<S> e = new Entry<S>(entry.spec);
+      e.count = entry.count;
+      copy.add(e);
+    }
+    return copy;
+  }
+
+  @Override
+  public String toString() {
+    return specs().toString();
+  }
+
+  private static class Entry<S> {
+    final S spec;
+    int count = 1;
+
+    Entry(S spec) {
+      this.spec = spec;
+    }
+  }
+}
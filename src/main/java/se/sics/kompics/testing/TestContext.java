@@ -23,6 +23,7 @@ package se.sics.kompics.testing;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,9 +43,11 @@ import se.sics.kompics.PortType;
 import se.sics.kompics.Positive;
 import se.sics.kompics.Scheduler;
 import se.sics.kompics.Start;
-import se.sics.kompics.scheduler.ThreadPoolScheduler;
+import se.sics.kompics.network.Address;
+import se.sics.kompics.testing.scheduler.WorkerPoolScheduler;
 
 import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
 
 
 public class TestContext<T extends ComponentDefinition> {
@@ -58,10 +61,10 @@ public class TestContext<T extends ComponentDefinition> {
 
   public static final Logger logger = LoggerFactory.getLogger("KompicsTesting");
 
-  private TestContext(Init<? extends ComponentDefinition> initEvent, Class<T> definition) {
+  private TestContext(Init<? extends ComponentDefinition> initEvent, Class<T> definition, Scheduler scheduler) {
     proxy = new Proxy<T>();
     proxyComponent = proxy.getComponentCore();
-    init();
+    init(scheduler);
     if (initEvent == Init.NONE) {
       cut = proxy.createComponentUnderTest(definition, (Init.None) initEvent);
     } else {
@@ -70,24 +73,38 @@ public class TestContext<T extends ComponentDefinition> {
     initFSM();
   }
 
-  private TestContext(Class<T> definition, Init<T> initEvent) {
-    this(initEvent, definition);
+  private TestContext(Class<T> definition, Init<T> initEvent, Scheduler scheduler) {
+    this(initEvent, definition, scheduler);
   }
 
-  private TestContext(Class<T> definition, Init.None initEvent) {
-    this(initEvent, definition);
+  private TestContext(Class<T> definition, Init.None initEvent, Scheduler scheduler) {
+    this(initEvent, definition, scheduler);
   }
 
   public static <T extends ComponentDefinition> TestContext<T> newTestContext(
       Class<T> definition, Init<T> initEvent) {
     checkNotNull(definition, initEvent);
-    return new TestContext<T>(definition, initEvent);
+    return new TestContext<T>(definition, initEvent, defaultScheduler());
   }
 
   public static <T extends ComponentDefinition> TestContext<T> newTestContext(
       Class<T> definition, Init.None initEvent) {
     checkNotNull(definition, initEvent);
-    return new TestContext<T>(definition, initEvent);
+    return new TestContext<T>(definition, initEvent, defaultScheduler());
+  }
+
+  // the scheduler runs the component under test and the components created with create
+  // and is shut down once the test has run
+  public static <T extends ComponentDefinition> TestContext<T> newTestContext(
+      Class<T> definition, Init<T> initEvent, Scheduler scheduler) {
+    checkNotNull(definition, initEvent, scheduler);
+    return new TestContext<T>(definition, initEvent, scheduler);
+  }
+
+  public static <T extends ComponentDefinition> TestContext<T> newTestContext(
+      Class<T> definition, Init.None initEvent, Scheduler scheduler) {
+    checkNotNull(definition, initEvent, scheduler);
+    return new TestContext<T>(definition, initEvent, scheduler);
   }
 
   public <T extends ComponentDefinition> Component create(
@@ -106,6 +123,25 @@ public class TestContext<T extends ComponentDefinition> {
     return c;
   }
 
+  public Component createVirtualTimer() {
+    return create(VirtualTimer.class, new VirtualTimer.VirtualTimerInit(ctrl.getVirtualClock()));
+  }
+
+  public Component createVirtualNetwork(Address self) {
+    checkNotNull(self);
+    return create(VirtualNetwork.class, new VirtualNetwork.VirtualNetworkInit(ctrl.getSimulatedNetwork(), self));
+  }
+
+  public TestContext<T> setNetworkModel(NetworkModel model) {
+    checkNotNull(model);
+    ctrl.setNetworkModel(model);
+    return this;
+  }
+
+  public long getVirtualTime() {
+    return ctrl.getVirtualClock().now();
+  }
+
   public <P extends PortType> TestContext<T> connect(
           Negative<P> negative, Positive<P> positive) {
     return connect(positive, negative);
@@ -171,6 +207,12 @@ public class TestContext<T extends ComponentDefinition> {
     return this;
   }
 
+  /**
+   * Starts a block of single event expects that may be received in any order, closed by {@link #end()}.
+   * Expected events are looked up by key only if a key extractor is registered for their class with
+   * {@link #addKeyExtractor}. Otherwise every received event is compared with every expected event of
+   * the block, so matching a block of n events takes O(n^2) comparisons.
+   */
   public TestContext<T> unordered() {
     ctrl.setUnorderedMode();
     return this;
@@ -208,11 +250,21 @@ public class TestContext<T extends ComponentDefinition> {
     return this;
   }
 
+  public TestContext<T> within(long timeoutMS) {
+    ctrl.within(timeoutMS);
+    return this;
+  }
+
   public TestContext<T> expectWithMapper() {
     ctrl.setExpectWithMapperMode();
     return this;
   }
 
+  public TestContext<T> expectWithMapper(int window) {
+    ctrl.setExpectWithMapperMode(window);
+    return this;
+  }
+
   public <E extends KompicsEvent, R extends KompicsEvent> TestContext<T> setMapperForNext(
           int expectedEvents, Class<E> eventType, Function<E, R> mapper) {
     checkNotNull(eventType, mapper);
@@ -274,6 +326,13 @@ public class TestContext<T extends ComponentDefinition> {
     return this;
   }
 
+  public <P extends PortType> TestContext<T> generate(
+          Supplier<? extends KompicsEvent> supplier, Port<P> port, LoadProfile profile) {
+    checkNotNull(supplier, port, profile);
+    ctrl.generate(supplier, port, profile);
+    return this;
+  }
+
   // // TODO: 3/31/17 allow matching predicate
   public <P extends  PortType> TestContext<T> disallow(
             KompicsEvent event, Port<P> port, Direction direction) {
@@ -306,6 +365,60 @@ public class TestContext<T extends ComponentDefinition> {
     return this;
   }
 
+  public <E extends KompicsEvent> TestContext<T> addKeyExtractor(
+          Class<E> eventType, Function<E, ?> keyExtractor) {
+    checkNotNull(eventType, keyExtractor);
+    ctrl.addKeyExtractor(eventType, keyExtractor);
+    return this;
+  }
+
+  public <Q extends KompicsEvent, R extends KompicsEvent> TestContext<T> measureLatency(
+          Class<Q> requestType, Class<R> responseType) {
+    checkNotNull(requestType, responseType);
+    ctrl.measureLatency(requestType, null, responseType, null);
+    return this;
+  }
+
+  public <Q extends KompicsEvent, R extends KompicsEvent> TestContext<T> measureLatency(
+          Class<Q> requestType, Function<Q, ?> requestKey, Class<R> responseType, Function<R, ?> responseKey) {
+    checkNotNull(requestType, requestKey, responseType, responseKey);
+    ctrl.measureLatency(requestType, requestKey, responseType, responseKey);
+    return this;
+  }
+
+  public TestContext<T> setMaxPendingRequests(int maxPending) {
+    ctrl.setMaxPendingRequests(maxPending);
+    return this;
+  }
+
+  public <P extends PortType> TestContext<T> expectLatency(
+          Port<P> port, Class<? extends KompicsEvent> requestType,
+          double percentile, long maxLatency, TimeUnit unit) {
+    checkNotNull(port, requestType, unit);
+    ctrl.expectLatency(port, requestType, percentile, unit.toNanos(maxLatency));
+    return this;
+  }
+
+  public <P extends PortType> TestContext<T> expectRate(
+          Port<P> port, Direction direction, Class<? extends KompicsEvent> eventType, double minPerSecond) {
+    checkNotNull(port, direction, eventType);
+    checkValidPort(port, direction);
+    ctrl.expectRate(port, direction, eventType, minPerSecond);
+    return this;
+  }
+
+  public <P extends PortType> LatencyHistogram getLatencyHistogram(
+          Port<P> port, Class<? extends KompicsEvent> requestType) {
+    checkNotNull(port, requestType);
+    return ctrl.getLatencyHistogram(port, requestType);
+  }
+
+  public <P extends PortType> long getUnansweredRequests(
+          Port<P> port, Class<? extends KompicsEvent> requestType) {
+    checkNotNull(port, requestType);
+    return ctrl.getUnansweredRequests(port, requestType);
+  }
+
   public <E extends KompicsEvent> TestContext<T> setDefaultAction(
           Class<E> eventType, Function<E, Action> function) {
     checkNotNull(eventType, function);
@@ -313,6 +426,33 @@ public class TestContext<T extends ComponentDefinition> {
     return this;
   }
 
+  public <E extends KompicsEvent> TestContext<T> setDefaultAction(
+          Class<E> eventType, Action action) {
+    checkNotNull(eventType, action);
+    ctrl.setDefaultAction(eventType, action);
+    return this;
+  }
+
+  public TestContext<T> setSoakMode(int traceSize) {
+    ctrl.setSoakMode(traceSize);
+    return this;
+  }
+
+  // steps retained for the failure report
+  FlightRecorder getFlightRecorder() {
+    return ctrl.getFlightRecorder();
+  }
+
+  // null unless a transition cache size was set
+  DFACache<?> getTransitionCache() {
+    return ctrl.getTransitionCache();
+  }
+
+  public TestContext<T> setTransitionCacheSize(int capacity) {
+    ctrl.setTransitionCacheSize(capacity);
+    return this;
+  }
+
   public Component getComponentUnderTest() {
     return cut.getComponentCore();
   }
@@ -343,21 +483,58 @@ public class TestContext<T extends ComponentDefinition> {
     return this;
   }
 
+  public TestContext<T> setInspectTimeout(long timeoutMS) {
+    ctrl.setInspectTimeout(timeoutMS);
+    return this;
+  }
+
+  public TestContext<T> setEventQueueCapacity(int capacity) {
+    ctrl.checkInInitialHeader();
+    proxy.eventQueue.setCapacity(capacity);
+    return this;
+  }
+
+  public TestContext<T> setWaitStrategy(WaitStrategy waitStrategy) {
+    checkNotNull(waitStrategy);
+    proxy.eventQueue.setWaitStrategy(waitStrategy);
+    return this;
+  }
+
   public boolean check() {
+    return check(1);
+  }
+
+  /**
+   * Runs the specification {@code runs} times in a row, stopping at the first failed run.
+   * Each run starts from the initial state with new block counters, pending events, deadlines,
+   * partially matched groups and block assertion measurements.
+   * The components are not recreated: every run is against the same instances of the component
+   * under test and of the components created with {@code create}, and uses the same futures of
+   * {@code expectWithFuture}, so their state carries over from one run to the next.
+   *
+   * @param runs number of runs, must be positive
+   * @return true if every run passed
+   */
+  public boolean check(int runs) {
     if (checked) {
       throw new IllegalStateException("test has previously been run");
     } else {
       checked = true;
-      boolean success = ctrl.start();
-      scheduler.shutdown();
-      return success;
+      try {
+        return ctrl.start(runs);
+      } finally {
+        scheduler.shutdown();
+      }
     }
   }
 
   // PRIVATE
-  private void init() {
-    // default scheduler
-    scheduler = new ThreadPoolScheduler(1);
+  private static Scheduler defaultScheduler() {
+    return new WorkerPoolScheduler(1);
+  }
+
+  private void init(Scheduler scheduler) {
+    this.scheduler = scheduler;
     Kompics.setScheduler(scheduler);
 
     // // TODO: 2/20/17 set worker id
@@ -367,6 +544,7 @@ public class TestContext<T extends ComponentDefinition> {
 
   private void initFSM() {
     ctrl = proxy.getFsm();
+    ctrl.setScheduler(scheduler);
     ctrl.addParticipant(cut.getComponentCore());
   }
 
@@ -20,29 +20,124 @@
  */
 package se.sics.kompics.testing;
 
-import java.util.LinkedList;
+import se.sics.kompics.KompicsEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Matches received events against a set of expected events in any order.
+ * An event is accepted if the events seen so far and the event can all be
+ * assigned to distinct expected specs, which is decided by searching for an
+ * augmenting path in the bipartite graph of seen events and the specs they match.
+ * Events can therefore take a spec that was assigned earlier if the earlier event
+ * matches some other pending spec, e.g. with overlapping predicates.
+ */
 class UnorderedSpec implements MultiEventSpec{
 
-  private final List<SingleEventSpec> expectUnordered;
-  private List<SingleEventSpec> pending;
-  private List<EventSpec> seen;
+  private final SingleEventSpec[] expected;
+
+  // expected events with a registered key extractor indexed by key, the rest are tried one by one.
+  // events are not indexed by their own hashCode, which may not agree with equals
+  private final Map<Object, int[]> keyIndex = new HashMap<Object, int[]>();
+  private final int[] unindexed;
 
   UnorderedSpec(List<SingleEventSpec> expectUnordered) {
-    this.expectUnordered = expectUnordered;
-    seen = new LinkedList<EventSpec>();
-    pending = new LinkedList<SingleEventSpec>(expectUnordered);
+    int size = expectUnordered.size();
+    expected = expectUnordered.toArray(new SingleEventSpec[size]);
+
+    List<Integer> others = new ArrayList<Integer>();
+    for (int i = 0; i < size; i++) {
+      Object key = SpecMultiset.keyOf(expected[i]);
+      if (key != null) {
+        keyIndex.put(key, append(keyIndex.get(key), i));
+      } else {
+        others.add(i);
+      }
+    }
+    unindexed = new int[others.size()];
+    for (int i = 0; i < unindexed.length; i++) {
+      unindexed[i] = others.get(i);
+    }
+  }
+
+  @Override
+  public MultiEventSpec.Progress newProgress() {
+    return new Progress();
   }
 
   @Override
-  public boolean match(EventSpec receivedSpec) {
-    if (pending.contains(receivedSpec)) {
-      int index = pending.indexOf(receivedSpec);
+  public Collection<Class<? extends KompicsEvent>> getEventTypes() {
+    List<Class<? extends KompicsEvent>> eventTypes = new ArrayList<Class<? extends KompicsEvent>>();
+    for (SingleEventSpec spec : expected) {
+      eventTypes.add(spec.getEventType());
+    }
+    return eventTypes;
+  }
+
+  private static int[] append(int[] array, int value) {
+    if (array == null) {
+      return new int[] { value };
+    }
+    int[] result = Arrays.copyOf(array, array.length + 1);
+    result[array.length] = value;
+    return result;
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("Unordered<");
+    for (SingleEventSpec spec : expected) {
+      sb.append(" ").append(spec);
+    }
+    sb.append(">");
+    return sb.toString();
+  }
+
+  private class Progress implements MultiEventSpec.Progress {
+    private final List<EventSpec> seen = new ArrayList<EventSpec>();
+    // candidate specs of the seen events stored back to back, event i owns
+    // candidates[offsets[i]] up to candidates[offsets[i + 1]]
+    private int[] candidates = new int[expected.length];
+    private final int[] offsets = new int[expected.length + 1];
+    private final int[] eventToSpec = new int[expected.length];
+    private final int[] specToEvent = new int[expected.length];
+
+    // scratch space of the candidate lookup and the augmenting path search
+    private final int[] matching = new int[expected.length];
+    private final int[] visited = new int[expected.length];
+    private final int[] parent = new int[expected.length];
+    private final int[] queue = new int[expected.length];
+    private int stamp = 0;
+
+    Progress() {
+      Arrays.fill(specToEvent, -1);
+    }
+
+    @Override
+    public boolean match(EventSpec receivedSpec) {
+      int count = candidatesFor(receivedSpec);
+      if (count == 0) {
+        return false;
+      }
+
+      int event = seen.size();
+      int start = offsets[event];
+      if (start + count > candidates.length) {
+        candidates = Arrays.copyOf(candidates, Math.max(2 * candidates.length, start + count));
+      }
+      System.arraycopy(matching, 0, candidates, start, count);
+      offsets[event + 1] = start + count;
       seen.add(receivedSpec);
-      pending.remove(index);
+      if (!augment(event)) {
+        seen.remove(event);
+        return false;
+      }
 
-      if (pending.isEmpty()) {
+      if (seen.size() == expected.length) {
         for (EventSpec e : seen) {
           e.handle();
         }
@@ -50,32 +145,102 @@ class UnorderedSpec implements MultiEventSpec{
       }
       return true;
     }
-    return false;
-  }
 
-  @Override
-  public boolean isComplete() {
-    return seen.isEmpty();
-  }
+    // number of expected specs that the received event matches, which are written to matching.
+    // without a key extractor every unindexed spec is tried, so a group of n such events costs O(n^2)
+    private int candidatesFor(EventSpec receivedSpec) {
+      int count = 0;
+      Object key = receivedSpec.getEventKey();
+      if (key != null) {
+        int[] bucket = keyIndex.get(key);
+        if (bucket != null) {
+          for (int i : bucket) {
+            if (receivedSpec.equals(expected[i])) {
+              matching[count++] = i;
+            }
+          }
+        }
+      }
+      for (int i : unindexed) {
+        if (receivedSpec.equals(expected[i])) {
+          matching[count++] = i;
+        }
+      }
+      return count;
+    }
+
+    // breadth first search for a free spec reachable from the new event by
+    // alternating between candidate specs and the events currently assigned to them
+    private boolean augment(int event) {
+      for (int i = offsets[event]; i < offsets[event + 1]; i++) {
+        int spec = candidates[i];
+        if (specToEvent[spec] < 0) {
+          assign(event, spec);
+          return true;
+        }
+      }
+
+      if (++stamp == 0) {
+        Arrays.fill(visited, 0);
+        stamp = 1;
+      }
+      int head = 0, tail = 0;
+      queue[tail++] = event;
+      while (head < tail) {
+        int current = queue[head++];
+        for (int i = offsets[current]; i < offsets[current + 1]; i++) {
+          int spec = candidates[i];
+          if (visited[spec] == stamp) {
+            continue;
+          }
+          visited[spec] = stamp;
+          parent[spec] = current;
+          int owner = specToEvent[spec];
+          if (owner < 0) {
+            // flip the assignments along the path back to the new event
+            while (spec >= 0) {
+              int e = parent[spec];
+              int previous = e == event? -1 : eventToSpec[e];
+              assign(e, spec);
+              spec = previous;
+            }
+            return true;
+          }
+          queue[tail++] = owner;
+        }
+      }
+      return false;
+    }
 
-  private void reset() {
-    for (SingleEventSpec spec : expectUnordered) {
-      pending.add(spec);
+    private void assign(int event, int spec) {
+      eventToSpec[event] = spec;
+      specToEvent[spec] = event;
     }
-    seen.clear();
-  }
 
-  public String toString() {
-    StringBuilder sb = new StringBuilder("Unordered<Seen(");
-    for (EventSpec e : seen) {
-      sb.append(" ").append(e);
+    @Override
+    public boolean isComplete() {
+      return seen.isEmpty();
+    }
+
+    private void reset() {
+      Arrays.fill(specToEvent, -1);
+      seen.clear();
     }
-    sb.append(")Pending(");
-    for (Spec e : pending) {
-      sb.append(" ").append(e);
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("Unordered<Seen(");
+      for (EventSpec e : seen) {
+        sb.append(" ").append(e);
+      }
+      sb.append(")Pending(");
+      for (int i = 0; i < expected.length; i++) {
+        if (specToEvent[i] < 0) {
+          sb.append(" ").append(expected[i]);
+        }
+      }
+      sb.append(")>");
+      return sb.toString();
     }
-    sb.append(")>");
-    return sb.toString();
   }
-
 }
@@ -0,0 +1,98 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Discrete-event clock shared by the simulated components of a test.
+ * Tasks are scheduled at a virtual time and run, one at a time and in order of
+ * time and scheduling, whenever the test is waiting for events and all components are idle.
+ * Time only moves forward when a task is run.
+ */
+class VirtualClock {
+
+  private long now;
+  private long sequence;
+  private final PriorityQueue<Task> tasks = new PriorityQueue<Task>(16, new Comparator<Task>() {
+    @Override
+    public int compare(Task t1, Task t2) {
+      if (t1.time != t2.time) {
+        return t1.time < t2.time? -1 : 1;
+      }
+      return t1.sequence < t2.sequence? -1 : (t1.sequence == t2.sequence? 0 : 1);
+    }
+  });
+
+  synchronized long now() {
+    return now;
+  }
+
+  synchronized void schedule(Task task, long delay) {
+    if (delay < 0) {
+      throw new IllegalArgumentException("Negative delay " + delay);
+    }
+    task.time = now + delay;
+    task.sequence = sequence++;
+    task.cancelled = false;
+    tasks.add(task);
+  }
+
+  synchronized void cancel(Task task) {
+    task.cancelled = true;
+  }
+
+  synchronized boolean hasPendingTasks() {
+    discardCancelledTasks();
+    return !tasks.isEmpty();
+  }
+
+  // runs the next task, moving time forward to its deadline. returns false if there is none
+  boolean advance() {
+    Task task;
+    synchronized (this) {
+      discardCancelledTasks();
+      task = tasks.poll();
+      if (task == null) {
+        return false;
+      }
+      now = task.time;
+    }
+    TestContext.logger.trace("virtual time {}: running {}", task.time, task);
+    task.run();
+    return true;
+  }
+
+  private void discardCancelledTasks() {
+    while (!tasks.isEmpty() && tasks.peek().cancelled) {
+      tasks.poll();
+    }
+  }
+
+  abstract static class Task {
+    private long time;
+    private long sequence;
+    private boolean cancelled;
+
+    abstract void run();
+  }
+}
@@ -0,0 +1,75 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import se.sics.kompics.ComponentDefinition;
+import se.sics.kompics.Handler;
+import se.sics.kompics.Init;
+import se.sics.kompics.Negative;
+import se.sics.kompics.network.Address;
+import se.sics.kompics.network.Msg;
+import se.sics.kompics.network.Network;
+
+/**
+ * Network component of a single node of the simulated network of a {@link TestContext},
+ * created with {@link TestContext#createVirtualNetwork(Address)}.
+ * Messages sent through it are delivered to the node with the destination address.
+ */
+public class VirtualNetwork extends ComponentDefinition {
+
+  private final Negative<Network> network = provides(Network.class);
+  private final SimulatedNetwork simulatedNetwork;
+  private final Address self;
+
+  public VirtualNetwork(VirtualNetworkInit init) {
+    simulatedNetwork = init.simulatedNetwork;
+    self = init.self;
+    simulatedNetwork.register(self, this);
+    subscribe(msgHandler, network);
+  }
+
+  private final Handler<Msg> msgHandler = new Handler<Msg>() {
+    @Override
+    public void handle(Msg message) {
+      simulatedNetwork.send(message);
+    }
+  };
+
+  // run by the clock
+  void deliver(Msg message) {
+    trigger(message, network);
+  }
+
+  @Override
+  public String toString() {
+    return "VirtualNetwork(" + self + ")";
+  }
+
+  public static final class VirtualNetworkInit extends Init<VirtualNetwork> {
+    private final SimulatedNetwork simulatedNetwork;
+    private final Address self;
+
+    VirtualNetworkInit(SimulatedNetwork simulatedNetwork, Address self) {
+      this.simulatedNetwork = simulatedNetwork;
+      this.self = self;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import se.sics.kompics.ComponentDefinition;
+import se.sics.kompics.Handler;
+import se.sics.kompics.Init;
+import se.sics.kompics.Negative;
+import se.sics.kompics.timer.CancelPeriodicTimeout;
+import se.sics.kompics.timer.CancelTimeout;
+import se.sics.kompics.timer.SchedulePeriodicTimeout;
+import se.sics.kompics.timer.ScheduleTimeout;
+import se.sics.kompics.timer.Timeout;
+import se.sics.kompics.timer.Timer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Timer driven by the virtual clock of a {@link TestContext}, created with
+ * {@link TestContext#createVirtualTimer()}.
+ * Timeouts are triggered as soon as the tested system is idle, in order of their deadlines.
+ */
+public class VirtualTimer extends ComponentDefinition {
+
+  private final Negative<Timer> timer = provides(Timer.class);
+  private final VirtualClock clock;
+  private final Map<UUID, VirtualClock.Task> activeTimers = new HashMap<UUID, VirtualClock.Task>();
+
+  public VirtualTimer(VirtualTimerInit init) {
+    clock = init.clock;
+    subscribe(scheduleTimeoutHandler, timer);
+    subscribe(schedulePeriodicTimeoutHandler, timer);
+    subscribe(cancelTimeoutHandler, timer);
+    subscribe(cancelPeriodicTimeoutHandler, timer);
+  }
+
+  private final Handler<ScheduleTimeout> scheduleTimeoutHandler = new Handler<ScheduleTimeout>() {
+    @Override
+    public void handle(ScheduleTimeout event) {
+      Timeout timeout = event.getTimeoutEvent();
+      schedule(new TimeoutTask(timeout, 0), event.getDelay());
+    }
+  };
+
+  private final Handler<SchedulePeriodicTimeout> schedulePeriodicTimeoutHandler =
+      new Handler<SchedulePeriodicTimeout>() {
+    @Override
+    public void handle(SchedulePeriodicTimeout event) {
+      if (event.getPeriod() <= 0) {
+        throw new IllegalArgumentException("Non-positive period " + event.getPeriod());
+      }
+      Timeout timeout = event.getTimeoutEvent();
+      schedule(new TimeoutTask(timeout, event.getPeriod()), event.getDelay());
+    }
+  };
+
+  private final Handler<CancelTimeout> cancelTimeoutHandler = new Handler<CancelTimeout>() {
+    @Override
+    public void handle(CancelTimeout event) {
+      cancel(event.getTimeoutId());
+    }
+  };
+
+  private final Handler<CancelPeriodicTimeout> cancelPeriodicTimeoutHandler =
+      new Handler<CancelPeriodicTimeout>() {
+    @Override
+    public void handle(CancelPeriodicTimeout event) {
+      cancel(event.getTimeoutId());
+    }
+  };
+
+  private synchronized void schedule(TimeoutTask task, long delay) {
+    activeTimers.put(task.timeout.getTimeoutId(), task);
+    clock.schedule(task, delay);
+  }
+
+  private synchronized void cancel(UUID timeoutId) {
+    VirtualClock.Task task = activeTimers.remove(timeoutId);
+    if (task != null) {
+      clock.cancel(task);
+    }
+  }
+
+  // run by the clock while no handler of this component is executing
+  private synchronized void fire(TimeoutTask task) {
+    if (activeTimers.get(task.timeout.getTimeoutId()) != task) {
+      return; // cancelled
+    }
+    if (task.period > 0) {
+      trigger(copyOf(task.timeout), timer);
+      clock.schedule(task, task.period);
+    } else {
+      activeTimers.remove(task.timeout.getTimeoutId());
+      trigger(task.timeout, timer);
+    }
+  }
+
+  private Timeout copyOf(Timeout timeout) {
+    try {
+      return (Timeout) timeout.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private class TimeoutTask extends VirtualClock.Task {
+    final Timeout timeout;
+    final long period;
+
+    TimeoutTask(Timeout timeout, long period) {
+      this.timeout = timeout;
+      this.period = period;
+    }
+
+    @Override
+    void run() {
+      fire(this);
+    }
+
+    @Override
+    public String toString() {
+      return "Timeout(" + timeout + ")";
+    }
+  }
+
+  public static final class VirtualTimerInit extends Init<VirtualTimer> {
+    private final VirtualClock clock;
+
+    VirtualTimerInit(VirtualClock clock) {
+      this.clock = clock;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing.scheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.kompics.Component;
+import se.sics.kompics.ComponentCore;
+import se.sics.kompics.JavaComponent;
+import se.sics.kompics.Scheduler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Executes components on a pool of worker threads and lets other threads
+ * wait until a component has no pending work, without polling its work count.
+ * The pool is either a fixed number of workers sharing a queue or a work-stealing fork/join pool.
+ * Workers are daemon threads, so a test that never shuts the scheduler down doesn't keep the JVM alive.
+ */
+public class WorkerPoolScheduler extends Scheduler {
+
+  private static final Logger logger = LoggerFactory.getLogger(WorkerPoolScheduler.class);
+
+  private final ExecutorService workers;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition executed = lock.newCondition();
+  private volatile int waiters = 0;
+
+  public WorkerPoolScheduler(int workers) {
+    if (workers <= 0) {
+      throw new IllegalArgumentException("at least one worker is required");
+    }
+    this.workers = Executors.newFixedThreadPool(workers, new WorkerFactory());
+  }
+
+  private WorkerPoolScheduler(ExecutorService workers) {
+    this.workers = workers;
+  }
+
+  public static WorkerPoolScheduler workStealing(int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("at least one worker is required");
+    }
+    return new WorkerPoolScheduler(new ForkJoinPool(parallelism));
+  }
+
+  @Override
+  public void schedule(final Component c, final int wid) {
+    try {
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          ((ComponentCore) c).execute(wid);
+          signalExecuted();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      if (!workers.isShutdown()) {
+        throw e;
+      }
+      logger.warn("work of {} was dropped, the scheduler is shut down", c);
+    }
+  }
+
+  // returns false if the component still had pending work after timeoutNanos
+  public boolean awaitIdle(JavaComponent component, long timeoutNanos) {
+    if (component.workCount.get() == 0) {
+      return true;
+    }
+    long nanos = timeoutNanos;
+    lock.lock();
+    try {
+      waiters++;
+      while (component.workCount.get() > 0) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = executed.awaitNanos(nanos);
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      waiters--;
+      lock.unlock();
+    }
+  }
+
+  private void signalExecuted() {
+    // a waiter checks the work count while holding the lock
+    if (waiters > 0) {
+      lock.lock();
+      try {
+        executed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  @Override
+  public void proceed() { }
+
+  @Override
+  public void shutdown() {
+    workers.shutdown();
+  }
+
+  @Override
+  public void asyncShutdown() {
+    workers.shutdown();
+  }
+
+  private static class WorkerFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread worker = new Thread(r, "kompics-worker-" + count.getAndIncrement());
+      worker.setDaemon(true);
+      return worker;
+    }
+  }
+}
@@ -505,6 +505,45 @@ public class ConditionalTest {
     assert tc.check();
   }
 
+  @Test
+  public void disallowedBranchTest() {
+    tc.body()
+        .trigger(pong(0), pongerPort.getPair())
+        .trigger(pong(1), pongerPort.getPair())
+        .either()
+            .repeat(1)
+                .disallow(pong(0), pingerPort, IN)
+            .body()
+                .expect(pong(1), pingerPort, IN)
+            .end()
+        .or()
+            // takes pong(0) after the first branch died on it
+            .expect(pong(0), pingerPort, IN)
+            .expect(pong(1), pingerPort, IN)
+        .end()
+    ;
+
+    assert tc.check();
+  }
+
+  @Test
+  public void disallowedInEveryBranchTest() {
+    tc.body()
+        .trigger(pong(0), pongerPort.getPair())
+        .either()
+            .repeat(1)
+                .disallow(pong(0), pingerPort, IN)
+            .body()
+                .expect(pong(1), pingerPort, IN)
+            .end()
+        .or()
+            .expect(pong(2), pingerPort, IN)
+        .end()
+    ;
+
+    assert !tc.check();
+  }
+
   private PFuture future1 = new PFuture();
   private PFuture future2 = new PFuture();
   private PFuture future3 = new PFuture();
@@ -0,0 +1,143 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import org.junit.Test;
+import se.sics.kompics.Component;
+import se.sics.kompics.ComponentDefinition;
+import se.sics.kompics.Handler;
+import se.sics.kompics.Init;
+import se.sics.kompics.Negative;
+import se.sics.kompics.Positive;
+import se.sics.kompics.testing.pingpong.Ping;
+import se.sics.kompics.testing.pingpong.PingPongPort;
+import se.sics.kompics.testing.pingpong.Pong;
+
+import static se.sics.kompics.testing.Direction.OUT;
+
+public class DeadlineTest {
+
+  private Predicate<Pong> anyPong = Predicates.alwaysTrue();
+
+  @Test
+  public void withinTest() {
+    TestContext<DelayedPonger> tc = newTestContext(0);
+    Positive<PingPongPort> pongerPort = pongerPort(tc);
+    tc.body().
+        repeat(10).within(1000).body().
+            trigger(new Ping(0), pongerPort).
+            expect(Pong.class, anyPong, pongerPort, OUT).within(500).
+        end();
+
+    assert tc.check();
+  }
+
+  @Test
+  public void missedDeadlineTest() {
+    TestContext<DelayedPonger> tc = newTestContext(100);
+    Positive<PingPongPort> pongerPort = pongerPort(tc);
+    tc.body().
+        trigger(new Ping(0), pongerPort).
+        expect(Pong.class, anyPong, pongerPort, OUT).within(10);
+
+    // the pong arrives before the event timeout but after its deadline
+    assert !tc.check();
+  }
+
+  @Test
+  public void missedBlockDeadlineTest() {
+    TestContext<DelayedPonger> tc = newTestContext(20);
+    Positive<PingPongPort> pongerPort = pongerPort(tc);
+    tc.body().
+        repeat(3).within(10).body().
+            trigger(new Ping(0), pongerPort).
+            expect(Pong.class, anyPong, pongerPort, OUT).
+        end();
+
+    assert !tc.check();
+  }
+
+  @Test
+  public void conditionalDeadlineTest() {
+    TestContext<DelayedPonger> tc = newTestContext(30);
+    Positive<PingPongPort> pongerPort = pongerPort(tc);
+    tc.body().
+        trigger(new Ping(0), pongerPort).
+        either().
+            expect(Pong.class, anyPong, pongerPort, OUT).within(5).
+        or().
+            expect(Pong.class, anyPong, pongerPort, OUT).
+        end();
+
+    // only the branch with the missed deadline fails
+    assert tc.check();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void withinAfterTriggerTest() {
+    TestContext<DelayedPonger> tc = newTestContext(0);
+    tc.body().trigger(new Ping(0), pongerPort(tc)).within(10);
+  }
+
+  private TestContext<DelayedPonger> newTestContext(long delayMS) {
+    return TestContext.newTestContext(DelayedPonger.class, new DelayedPongerInit(delayMS));
+  }
+
+  private Positive<PingPongPort> pongerPort(TestContext<DelayedPonger> tc) {
+    Component ponger = tc.getComponentUnderTest();
+    return ponger.getPositive(PingPongPort.class);
+  }
+
+  public static class DelayedPonger extends ComponentDefinition {
+    private Negative<PingPongPort> pingPongPort = provides(PingPongPort.class);
+    private final long delayMS;
+
+    public DelayedPonger(DelayedPongerInit init) {
+      delayMS = init.delayMS;
+    }
+
+    private Handler<Ping> pingHandler = new Handler<Ping>() {
+      @Override
+      public void handle(Ping ping) {
+        try {
+          Thread.sleep(delayMS);
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+        }
+        trigger(new Pong(ping.count), pingPongPort);
+      }
+    };
+
+    {
+      subscribe(pingHandler, pingPongPort);
+    }
+  }
+
+  public static class DelayedPongerInit extends Init<DelayedPonger> {
+    final long delayMS;
+
+    public DelayedPongerInit(long delayMS) {
+      this.delayMS = delayMS;
+    }
+  }
+}
@@ -20,6 +20,7 @@
  */
 package se.sics.kompics.testing;
 
+import com.google.common.base.Predicate;
 import org.junit.Test;
 
 import se.sics.kompics.Component;
@@ -96,6 +97,26 @@ public class EPFDTest {
     assert tc.check();
   }
 
+  @Test
+  public void unorderedWithoutKeyTest() {
+    tc.addComparator(ScheduleTimeout.class, new ScheduleTimeoutComparator()).
+       body();
+    tc.expect(st, epfd.getNegative(Timer.class), OUT).
+       trigger(new Watch(pongerAddr), epfd.getPositive(EPFDPort.class));
+
+    // Ping overrides equals but not hashCode and no key extractor is registered
+    tc.repeat(10).body().
+        trigger(timeout, epfd.getNegative(Timer.class)).
+        unordered().
+            expect(st, epfd.getNegative(Timer.class), OUT).
+            expect(ping, epfd.getNegative(Network.class), OUT).
+        end().
+        trigger(pong, epfd.getNegative(Network.class)).
+    end();
+
+    assert tc.check();
+  }
+
   @Test
   public void mockTimerOnly() {
     // Connect EPFD, Ponger
@@ -137,6 +158,69 @@ public class EPFDTest {
     assert tc.check();
   }
 
+  @Test
+  public void virtualNetworkAndTimer() {
+    Component timer = tc.createVirtualTimer();
+    Component networkPonger = tc.createVirtualNetwork(pongerAddr);
+    Component networkEPFD = tc.createVirtualNetwork(epfdAddr);
+    tc.connect(epfd.getNegative(Timer.class), timer.getPositive(Timer.class));
+    tc.connect(epfd.getNegative(Network.class), networkEPFD.getPositive(Network.class));
+    tc.connect(ponger.getNegative(Network.class), networkPonger.getPositive(Network.class));
+
+    // pongs arrive within 2 * 150ms, before the next timeout
+    tc.setNetworkModel(new LinkModel(1).setLatency(100).setJitter(50)).
+       addComparator(ScheduleTimeout.class, new ScheduleTimeoutComparator()).
+       disallow(suspect, epfd.getPositive(EPFDPort.class), OUT).
+       body();
+
+    tc.expect(st, epfd.getNegative(Timer.class), OUT).
+       trigger(new Watch(pongerAddr), epfd.getPositive(EPFDPort.class));
+
+    tc.repeat(10).body().
+        expect(EPFD.PingTimeout.class, anyTimeout, epfd.getNegative(Timer.class), IN).
+        expect(ping, epfd.getNegative(Network.class), OUT).
+        expect(st, epfd.getNegative(Timer.class), OUT).
+        expect(pong, epfd.getNegative(Network.class), IN).
+    end();
+
+    assert tc.check();
+    assert tc.getVirtualTime() > 10 * st.getDelay();
+  }
+
+  @Test
+  public void virtualNetworkLoss() {
+    Component timer = tc.createVirtualTimer();
+    Component networkPonger = tc.createVirtualNetwork(pongerAddr);
+    Component networkEPFD = tc.createVirtualNetwork(epfdAddr);
+    tc.connect(epfd.getNegative(Timer.class), timer.getPositive(Timer.class));
+    tc.connect(epfd.getNegative(Network.class), networkEPFD.getPositive(Network.class));
+    tc.connect(ponger.getNegative(Network.class), networkPonger.getPositive(Network.class));
+
+    tc.setNetworkModel(new LinkModel(1).setDropRate(1)).
+       addComparator(ScheduleTimeout.class, new ScheduleTimeoutComparator()).
+       body();
+
+    tc.expect(st, epfd.getNegative(Timer.class), OUT).
+       trigger(new Watch(pongerAddr), epfd.getPositive(EPFDPort.class)).
+       expect(EPFD.PingTimeout.class, anyTimeout, epfd.getNegative(Timer.class), IN).
+       expect(ping, epfd.getNegative(Network.class), OUT).
+       expect(st, epfd.getNegative(Timer.class), OUT).
+       // ping was lost
+       expect(EPFD.PingTimeout.class, anyTimeout, epfd.getNegative(Timer.class), IN).
+       expect(suspect, epfd.getPositive(EPFDPort.class), OUT).
+       expect(ping, epfd.getNegative(Network.class), OUT).
+       expect(st, epfd.getNegative(Timer.class), OUT);
+
+    assert tc.check();
+  }
+
+  private Predicate<EPFD.PingTimeout> anyTimeout = new Predicate<EPFD.PingTimeout>() {
+    @Override
+    public boolean apply(EPFD.PingTimeout timeout) {
+      return true;
+    }
+  };
+
   private void triggerTimeoutExpectPingAndSchedTimeout() {
     tc.trigger(timeout, epfd.getNegative(Timer.class)).
     expect(ping, epfd.getNegative(Network.class), OUT).
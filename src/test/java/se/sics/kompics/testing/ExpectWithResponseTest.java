@@ -35,7 +35,10 @@ import se.sics.kompics.testing.pingpong.Ping;
 import se.sics.kompics.testing.pingpong.PingPongPort;
 import se.sics.kompics.testing.pingpong.Pong;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 
@@ -122,6 +125,137 @@ public class ExpectWithResponseTest {
     assert tc.check();
   }
 
+  @Test
+  public void keyedFutureTest() {
+    TestContext<WindowPinger> windowContext = TestContext.newTestContext(WindowPinger.class, Init.NONE);
+    Component windowPinger = windowContext.getComponentUnderTest();
+    Negative<PingPongPort> port = windowPinger.getNegative(PingPongPort.class);
+
+    // the pinger only sends a new ping once it gets a pong for an outstanding one,
+    // so each response must be triggered as soon as its own request is seen
+    windowContext.body().
+        trigger(new Token(), windowPinger.getPositive(TokenPort.class)).
+        expectWithFuture();
+
+    List<IdFuture> idFutures = new ArrayList<IdFuture>();
+    for (int i = 0; i < WindowPinger.PINGS; i++) {
+      IdFuture future = new IdFuture(i);
+      idFutures.add(future);
+      windowContext.expect(Ping.class, port, future);
+    }
+    for (IdFuture future : idFutures) {
+      windowContext.trigger(port, future);
+    }
+
+    windowContext.end().
+        inspect(new Predicate<WindowPinger>() {
+          @Override
+          public boolean apply(WindowPinger pinger) {
+            return pinger.pongs == WindowPinger.PINGS && pinger.outstanding.isEmpty();
+          }
+        });
+
+    assert windowContext.check();
+  }
+
+  @Test
+  public void streamingMapperTest() {
+    TestContext<WindowPinger> windowContext = TestContext.newTestContext(WindowPinger.class, Init.NONE);
+    Component windowPinger = windowContext.getComponentUnderTest();
+    Negative<PingPongPort> port = windowPinger.getNegative(PingPongPort.class);
+
+    // responses are flushed every WINDOW / 2 requests, before the pinger runs out of its window
+    windowContext.body().
+        trigger(new Token(), windowPinger.getPositive(TokenPort.class)).
+        expectWithMapper(WindowPinger.WINDOW / 2).
+          setMapperForNext(WindowPinger.PINGS, Ping.class, pingPongMapper);
+
+    for (int i = 0; i < WindowPinger.PINGS; i++) {
+      windowContext.expect(port, port);
+    }
+
+    windowContext.end().
+        inspect(new Predicate<WindowPinger>() {
+          @Override
+          public boolean apply(WindowPinger pinger) {
+            return pinger.pongs == WindowPinger.PINGS && pinger.outstanding.isEmpty();
+          }
+        });
+
+    assert windowContext.check();
+  }
+
+  // futures that extract keys differently are each correlated by their own keyOf
+  @Test
+  public void mixedKeyedFuturesTest() {
+    TestContext<WindowPinger> windowContext = TestContext.newTestContext(WindowPinger.class, Init.NONE);
+    Component windowPinger = windowContext.getComponentUnderTest();
+    Negative<PingPongPort> port = windowPinger.getNegative(PingPongPort.class);
+
+    windowContext.body().
+        trigger(new Token(), windowPinger.getPositive(TokenPort.class)).
+        expectWithFuture();
+
+    List<IdFuture> idFutures = new ArrayList<IdFuture>();
+    for (int i = 0; i < WindowPinger.PINGS; i++) {
+      IdFuture future = i % 2 == 0? new IdFuture(i) : new NegatedIdFuture(i);
+      idFutures.add(future);
+      windowContext.expect(Ping.class, port, future);
+    }
+    for (IdFuture future : idFutures) {
+      windowContext.trigger(port, future);
+    }
+
+    windowContext.end().
+        inspect(new Predicate<WindowPinger>() {
+          @Override
+          public boolean apply(WindowPinger pinger) {
+            return pinger.pongs == WindowPinger.PINGS && pinger.outstanding.isEmpty();
+          }
+        });
+
+    assert windowContext.check();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void emptyWindowTest() {
+    tc.body().expectWithMapper(0);
+  }
+
+  private class IdFuture extends KeyedFuture<Ping, Pong> {
+    Pong pong;
+
+    IdFuture(int id) {
+      super(id);
+    }
+
+    @Override
+    public Object keyOf(Ping request) {
+      return request.count;
+    }
+
+    @Override
+    public void set(Ping request) {
+      pong = new Pong(request.count);
+    }
+
+    @Override
+    public Pong get() {
+      return pong;
+    }
+  }
+
+  private class NegatedIdFuture extends IdFuture {
+    NegatedIdFuture(int id) {
+      super(-id);
+    }
+
+    @Override
+    public Object keyOf(Ping request) {
+      return -request.count;
+    }
+  }
+
   private PFuture future1 = new PFuture(true);
   private PFuture future2 = new PFuture(true);
   private PFuture future3 = new PFuture(true);
@@ -205,6 +339,54 @@ public class ExpectWithResponseTest {
     }
   }
 
+  public static class WindowPinger extends ComponentDefinition {
+    static final int PINGS = 50;
+    static final int WINDOW = 4;
+
+    private Positive<PingPongPort> ppPort = requires(PingPongPort.class);
+    private Negative<TokenPort> tokenPort = provides(TokenPort.class);
+    private List<Integer> ids = new ArrayList<Integer>();
+    private Set<Integer> outstanding = new HashSet<Integer>();
+    private int next;
+    private int pongs;
+
+    private Handler<Token> tokenHandler = new Handler<Token>() {
+      @Override
+      public void handle(Token event) {
+        for (int i = 0; i < PINGS; i++) {
+          ids.add(i);
+        }
+        Collections.shuffle(ids, new Random(System.nanoTime()));
+        for (int i = 0; i < WINDOW; i++) {
+          sendNext();
+        }
+      }
+    };
+
+    private Handler<Pong> pongHandler = new Handler<Pong>() {
+      @Override
+      public void handle(Pong pong) {
+        if (outstanding.remove(pong.count)) {
+          pongs++;
+        }
+        sendNext();
+      }
+    };
+
+    private void sendNext() {
+      if (next < ids.size()) {
+        int id = ids.get(next++);
+        outstanding.add(id);
+        trigger(new Ping(id), ppPort);
+      }
+    }
+
+    {
+      subscribe(tokenHandler, tokenPort);
+      subscribe(pongHandler, ppPort);
+    }
+  }
+
   public static class TokenPort extends PortType {
     {
       request(Token.class);
@@ -49,6 +49,21 @@ public class InspectTest {
     assert tc.check();
   }
 
+  @Test
+  public void inspectTimeoutTest() {
+    TestContext<SlowStarter> slowContext = TestContext.newTestContext(SlowStarter.class, Init.NONE);
+    slowContext.setInspectTimeout(20).body().
+        inspect(new Predicate<SlowStarter>() {
+          @Override
+          public boolean apply(SlowStarter slowStarter) {
+            return true;
+          }
+        });
+
+    // the component is still handling start when the timeout expires
+    assert !slowContext.check();
+  }
+
   private Predicate<Pinger> expectedPings = new Predicate<Pinger>() {
     int expectedPingsSent = 0;
     @Override
@@ -108,6 +123,23 @@ public class InspectTest {
     }
   }
 
+  public static class SlowStarter extends ComponentDefinition {
+    Handler<Start> startHandler = new Handler<Start>() {
+      @Override
+      public void handle(Start event) {
+        try {
+          Thread.sleep(500);
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+
+    {
+      subscribe(startHandler, control);
+    }
+  }
+
   public static class PingPongPort extends PortType {
     {
       request(Ping.class);
@@ -0,0 +1,122 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import org.junit.Test;
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.Positive;
+import se.sics.kompics.testing.pingpong.Ping;
+import se.sics.kompics.testing.pingpong.PingPongPort;
+import se.sics.kompics.testing.pingpong.Pong;
+import se.sics.kompics.testing.pingpong.Server;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static se.sics.kompics.testing.Direction.IN;
+import static se.sics.kompics.testing.Direction.OUT;
+import static se.sics.kompics.testing.pingpong.ClientServer.ANY_PING;
+import static se.sics.kompics.testing.pingpong.ClientServer.ANY_PONG;
+import static se.sics.kompics.testing.pingpong.ClientServer.ROUNDS;
+import static se.sics.kompics.testing.pingpong.ClientServer.newTestContext;
+import static se.sics.kompics.testing.pingpong.ClientServer.serverPort;
+
+public class LatencyTest {
+
+  @Test
+  public void latencyHistogramTest() {
+    long serverDelayMS = 2;
+    TestContext<Server> tc = newTestContext(serverDelayMS);
+    Positive<PingPongPort> serverPort = serverPort(tc);
+    tc.measureLatency(Ping.class, Pong.class).body().
+        repeat(ROUNDS).expectLatency(serverPort, Ping.class, 99, 1, TimeUnit.SECONDS).body().
+            expect(Ping.class, ANY_PING, serverPort, IN).
+            expect(Pong.class, ANY_PONG, serverPort, OUT).
+        end();
+
+    assert tc.check();
+    LatencyHistogram histogram = tc.getLatencyHistogram(serverPort, Ping.class);
+    assertEquals(ROUNDS, histogram.getCount());
+    // every pong is sent at least serverDelayMS after its ping was received
+    assert histogram.getMin() >= TimeUnit.MILLISECONDS.toNanos(serverDelayMS);
+    assert histogram.getMean() >= TimeUnit.MILLISECONDS.toNanos(serverDelayMS);
+    assert histogram.getValueAtPercentile(99) <= histogram.getMax();
+    assertEquals(0, tc.getUnansweredRequests(serverPort, Ping.class));
+  }
+
+  @Test
+  public void maxPendingRequestsTest() {
+    TestContext<Server> tc = newTestContext(0);
+    Positive<PingPongPort> serverPort = serverPort(tc);
+    // no ping is ever answered, only the most recent ones are kept waiting
+    tc.measureLatency(Ping.class, Unanswered.class).setMaxPendingRequests(4).body().
+        repeat(ROUNDS).body().
+            expect(Ping.class, ANY_PING, serverPort, IN).
+            expect(Pong.class, ANY_PONG, serverPort, OUT).
+        end();
+
+    assert tc.check();
+    assertEquals(ROUNDS - 4, tc.getUnansweredRequests(serverPort, Ping.class));
+    assertEquals(0, tc.getLatencyHistogram(serverPort, Ping.class).getCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void noPendingRequestsTest() {
+    newTestContext(0).setMaxPendingRequests(0);
+  }
+
+  @Test
+  public void latencyAssertionTest() {
+    TestContext<Server> tc = newTestContext(5);
+    Positive<PingPongPort> serverPort = serverPort(tc);
+    tc.measureLatency(Ping.class, Pong.class).body().
+        repeat(ROUNDS).expectLatency(serverPort, Ping.class, 50, 1, TimeUnit.MILLISECONDS).body().
+            expect(Ping.class, ANY_PING, serverPort, IN).
+            expect(Pong.class, ANY_PONG, serverPort, OUT).
+        end();
+
+    // every response takes at least 5ms
+    assert !tc.check();
+  }
+
+  @Test
+  public void defaultActionLatencyTest() {
+    TestContext<Server> tc = newTestContext(0);
+    Positive<PingPongPort> serverPort = serverPort(tc);
+    // pings are not expected but are still measured
+    tc.measureLatency(Ping.class, Pong.class).
+        setDefaultAction(Ping.class, Action.HANDLE).body().
+        repeat(ROUNDS).expectLatency(serverPort, Ping.class, 99, 1, TimeUnit.SECONDS).body().
+            expect(Pong.class, ANY_PONG, serverPort, OUT).
+        end();
+
+    assert tc.check();
+    assertEquals(ROUNDS, tc.getLatencyHistogram(serverPort, Ping.class).getCount());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void unmeasuredLatencyTest() {
+    TestContext<Server> tc = newTestContext(0);
+    tc.body().repeat(ROUNDS).expectLatency(serverPort(tc), Ping.class, 99, 1, TimeUnit.SECONDS);
+  }
+
+  private static class Unanswered implements KompicsEvent { }
+}
@@ -0,0 +1,167 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import com.google.common.base.Supplier;
+import org.junit.Test;
+import se.sics.kompics.Positive;
+import se.sics.kompics.testing.pingpong.Ping;
+import se.sics.kompics.testing.pingpong.PingPongPort;
+import se.sics.kompics.testing.pingpong.Pong;
+import se.sics.kompics.testing.pingpong.Server;
+import se.sics.kompics.testing.pingpong.ServerInit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static se.sics.kompics.testing.Direction.OUT;
+import static se.sics.kompics.testing.pingpong.ClientServer.ANY_PONG;
+
+public class LoadGeneratorTest {
+
+  private static final int N = 50;
+
+  @Test
+  public void fixedRateTest() {
+    LoadProfile profile = LoadProfile.fixedRate(2000, N);
+    assert answersAll(profile, 0);
+    assert followsSchedule(profile);
+  }
+
+  @Test
+  public void burstsTest() {
+    LoadProfile profile = LoadProfile.bursts(10, 5, N / 10);
+    assert answersAll(profile, 0);
+    assert followsSchedule(profile);
+  }
+
+  @Test
+  public void poissonTest() {
+    LoadProfile profile = LoadProfile.poisson(2000, N, 1);
+    assert answersAll(profile, 0);
+    assert followsSchedule(profile);
+  }
+
+  // pings are not held back by the server taking 2ms per ping, closed loop they would span N * 2ms
+  @Test
+  public void openLoopTest() {
+    LoadProfile profile = LoadProfile.fixedRate(2000, N);
+    assert answersAll(profile, 2);
+    assert followsSchedule(profile);
+    assert triggerNanos.get(N - 1) - triggerNanos.get(0) < TimeUnit.MILLISECONDS.toNanos(N * 2);
+  }
+
+  // the specification accepts between arrivals, the test still waits for the generator to finish
+  @Test
+  public void runningGeneratorTest() {
+    TestContext<Server> tc = TestContext.newTestContext(Server.class, new ServerInit(0));
+    Positive<PingPongPort> serverPort = tc.getComponentUnderTest().getPositive(PingPongPort.class);
+    tc.body().
+        generate(pings, serverPort, LoadProfile.fixedRate(100, 10)).
+        repeat().body().
+            expect(Pong.class, ANY_PONG, serverPort, OUT).
+        end();
+
+    assert tc.check();
+    assert triggerNanos.size() == 10;
+  }
+
+  @Test
+  public void poissonRestartTest() {
+    LoadProfile profile = LoadProfile.poisson(2000, N, 1);
+    LoadProfile first = profile.newRun();
+    LoadProfile second = profile.newRun();
+    for (int i = 0; i < N; i++) {
+      assert first.delayNanos(i) == second.delayNanos(i);
+    }
+  }
+
+  @Test
+  public void failingSupplierTest() {
+    TestContext<Server> tc = TestContext.newTestContext(Server.class, new ServerInit(0));
+    Positive<PingPongPort> serverPort = tc.getComponentUnderTest().getPositive(PingPongPort.class);
+    tc.body().
+        generate(new Supplier<Ping>() {
+          int count = 0;
+          @Override
+          public Ping get() {
+            if (count == N / 2) {
+              throw new IllegalStateException("no more pings");
+            }
+            return new Ping(count++);
+          }
+        }, serverPort, LoadProfile.fixedRate(2000, N)).
+        repeat(N).body().
+            expect(Pong.class, ANY_PONG, serverPort, OUT).
+        end();
+
+    assert !tc.check();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidRateTest() {
+    LoadProfile.fixedRate(0, N);
+  }
+
+  // the generator keeps injecting pings while the specification consumes the pongs
+  private boolean answersAll(LoadProfile profile, long serverDelayMS) {
+    TestContext<Server> tc = TestContext.newTestContext(Server.class, new ServerInit(serverDelayMS));
+    Positive<PingPongPort> serverPort = tc.getComponentUnderTest().getPositive(PingPongPort.class);
+    tc.body().
+        generate(pings, serverPort, profile).
+        repeat(N).body().
+            expect(Pong.class, ANY_PONG, serverPort, OUT).
+        end();
+
+    return tc.check();
+  }
+
+  // no ping is triggered before its scheduled time relative to the first ping
+  private boolean followsSchedule(LoadProfile profile) {
+    LoadProfile schedule = profile.newRun();
+    long first = triggerNanos.get(0);
+    long offset = 0;
+    for (int i = 0; i < profile.count; i++) {
+      long delay = schedule.delayNanos(i);
+      if (i > 0) {
+        offset += delay;
+      }
+      if (triggerNanos.get(i) - first < offset) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // times at which the generator created each ping
+  private final List<Long> triggerNanos = Collections.synchronizedList(new ArrayList<Long>());
+
+  private Supplier<Ping> pings = new Supplier<Ping>() {
+    int count = 0;
+    @Override
+    public Ping get() {
+      triggerNanos.add(System.nanoTime());
+      return new Ping(count++);
+    }
+  };
+}
@@ -68,6 +68,26 @@ public class NFATest {
     assert tc.check();
   }
 
+  @Test
+  public void repeatedRunsTest() {
+    int runs = 5, M = 3;
+    tc.body()
+        .repeat(M).body()
+            .trigger(pong(1), pongerPort.getPair())
+            .expect(pong(1), pingerPort, IN)
+        .end()
+    ;
+
+    // block counters start over in every run, a leaked counter would end the block early
+    assert tc.check(runs);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void noRunsTest() {
+    tc.body().trigger(ping(0), pingerPort.getPair());
+    tc.check(0);
+  }
+
   private class Counter { private int i; }
   private Counter counter = new Counter();
 
@@ -239,6 +259,78 @@ public class NFATest {
     assert ((Pinger) tc.getComponentUnderTest().getComponent()).counter == 3 * M + N + 2;
   }
 
+  @Test
+  public void disallowedEventFailsFastTest() {
+    long timeoutMS = 10000;
+    tc.setTimeout(timeoutMS)
+        .disallow(pong(0), pingerPort, IN)
+        .body()
+            .trigger(pong(0), pongerPort.getPair())
+            .expect(pong(1), pingerPort, IN)
+    ;
+
+    long start = System.currentTimeMillis();
+    assert !tc.check();
+    // fails on the disallowed event instead of waiting for more events
+    assert System.currentTimeMillis() - start < timeoutMS;
+  }
+
+  @Test
+  public void transitionCacheTest() {
+    DFACache<?> cache = cachedPingPong(1000);
+    // every node and outcome fits, repeated iterations are served from the cache
+    assert cache.evictions() == 0;
+    assert cache.size() <= 1000;
+    assert cache.hits() > cache.misses();
+  }
+
+  @Test
+  public void transitionCacheEvictionTest() {
+    DFACache<?> cache = cachedPingPong(4);
+    assert cache.evictions() > 0;
+    assert cache.size() <= 4;
+  }
+
+  private DFACache<?> cachedPingPong(int capacity) {
+    int N = 20, M = 5;
+    tc
+        .setTransitionCacheSize(capacity)
+        .allow(pong(1), pingerPort, IN)
+        .body()
+            .repeat(N).body()
+                .repeat(M).body()
+                    .trigger(pong(1), pongerPort.getPair())
+                    .trigger(ping(0), pingerPort.getPair())
+                    .either()
+                        .expect(ping(1), pingerPort, OUT)
+                    .or()
+                        .expect(ping(0), pingerPort, OUT)
+                    .end()
+                .end()
+                .trigger(pong(3), pongerPort.getPair())
+                .expect(pong(3), pingerPort, IN)
+            .end()
+    ;
+
+    assert tc.check();
+    assert ((Pinger) tc.getComponentUnderTest().getComponent()).counter == N * M + N;
+    return tc.getTransitionCache();
+  }
+
+  @Test
+  public void relatedClassesTest() {
+    // Pong's equals accepts events of its subclass and vice versa
+    tc.body()
+        .trigger(pong(1), pongerPort.getPair())
+        .expect(new TaggedPong(1), pingerPort, IN)
+        .trigger(new TaggedPong(2), pongerPort.getPair())
+        .expect(pong(2), pingerPort, IN)
+    ;
+
+    assert tc.check();
+    assertEquals(2, ((Pinger) tc.getComponentUnderTest().getComponent()).counter);
+  }
+
   @Test
   public void unorderedTest1() {
     tc.body()
@@ -374,4 +466,12 @@ public class NFATest {
       return "Pong " + count;
     }
   }
+
+  static class TaggedPong extends Pong {
+    TaggedPong(int count) { super(count); }
+
+    public String toString() {
+      return "TaggedPong " + count;
+    }
+  }
 }
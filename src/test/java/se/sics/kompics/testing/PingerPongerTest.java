@@ -157,6 +157,68 @@ public class PingerPongerTest {
     assertEquals(counter.i, M * N);
   }
 
+  @Test
+  public void constantDefaultActionTest() {
+    // registered before the more specific action for Ping
+    tc.setDefaultAction(KompicsEvent.class, Action.FAIL);
+    tc.setDefaultAction(Ping.class, Action.DROP);
+
+    int N = 20;
+    tc.connect(pingerPort, pongerPort).body()
+        .repeat(N, increment)
+        .body()
+            .trigger(new Ping(0), pingerPort.getPair())
+            .trigger(new Ping(1), pingerPort.getPair())
+            .expect(new Ping(1), pingerPort, OUT)
+        .end()
+    ;
+    assert tc.check();
+    assertEquals(counter.i, N);
+  }
+
+  @Test
+  public void quiescentTerminationTest() {
+    long timeout = 60000;
+    tc.setTimeout(timeout).connect(pingerPort, pongerPort).body()
+        .trigger(new Ping(0), pingerPort.getPair())
+        .expect(new Ping(0), pingerPort, OUT)
+    ;
+    long start = System.currentTimeMillis();
+    assert tc.check();
+    assert System.currentTimeMillis() - start < timeout;
+  }
+
+  @Test
+  public void smallEventQueueTest() {
+    int N = 200;
+    tc.setEventQueueCapacity(2).setWaitStrategy(WaitStrategy.YIELD)
+        .connect(pingerPort, pongerPort).body()
+        .repeat(N, increment)
+        .body()
+            .trigger(new Ping(0), pingerPort.getPair())
+            .expect(new Ping(0), pingerPort, OUT)
+        .end()
+    ;
+    assert tc.check();
+    assertEquals(counter.i, N);
+  }
+
+  @Test
+  public void unobservedEventsTest() {
+    // pings are never expected and are forwarded without being queued
+    tc.setDefaultAction(Ping.class, Action.HANDLE);
+
+    int N = 100;
+    tc.connect(pingerPort, pongerPort).body()
+        .repeat(N, increment)
+        .body()
+            .trigger(new Ping(0), pingerPort.getPair())
+        .end()
+    ;
+    assert tc.check();
+    assertEquals(counter.i, N);
+  }
+
   @Before
   public void init() {
     tc = TestContext.newTestContext(Pinger.class, Init.NONE);
@@ -0,0 +1,101 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import org.junit.Test;
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.Positive;
+import se.sics.kompics.testing.pingpong.Ping;
+import se.sics.kompics.testing.pingpong.PingPongPort;
+import se.sics.kompics.testing.pingpong.Pong;
+import se.sics.kompics.testing.pingpong.Server;
+
+import static se.sics.kompics.testing.Direction.IN;
+import static se.sics.kompics.testing.Direction.OUT;
+import static se.sics.kompics.testing.pingpong.ClientServer.ANY_PING;
+import static se.sics.kompics.testing.pingpong.ClientServer.ANY_PONG;
+import static se.sics.kompics.testing.pingpong.ClientServer.ROUNDS;
+import static se.sics.kompics.testing.pingpong.ClientServer.newTestContext;
+import static se.sics.kompics.testing.pingpong.ClientServer.serverPort;
+
+public class RateTest {
+
+  // each pong takes at least SERVER_DELAY_MS, so fewer than 200 are sent per second
+  private static final long SERVER_DELAY_MS = 5;
+  private static final double REACHABLE = 20;
+  private static final double UNREACHABLE = 1000;
+
+  @Test
+  public void minimumRateTest() {
+    assert pongRate(Pong.class, OUT, REACHABLE);
+  }
+
+  @Test
+  public void missedRateTest() {
+    assert !pongRate(Pong.class, OUT, UNREACHABLE);
+  }
+
+  @Test
+  public void directionRateTest() {
+    // pongs are only sent by the server, none are counted in the other direction
+    assert !pongRate(Pong.class, IN, 1);
+  }
+
+  @Test
+  public void defaultActionRateTest() {
+    assert defaultActionPingRate(REACHABLE);
+    assert !defaultActionPingRate(UNREACHABLE);
+  }
+
+  @Test
+  public void supertypeRateTest() {
+    assert pongRate(KompicsEvent.class, OUT, REACHABLE);
+    assert !pongRate(KompicsEvent.class, OUT, UNREACHABLE);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void rateOutsideHeaderTest() {
+    TestContext<Server> tc = newTestContext(0);
+    tc.body().expectRate(serverPort(tc), OUT, Pong.class, 10);
+  }
+
+  private boolean pongRate(Class<? extends KompicsEvent> eventType, Direction direction, double minPerSecond) {
+    TestContext<Server> tc = newTestContext(SERVER_DELAY_MS);
+    Positive<PingPongPort> serverPort = serverPort(tc);
+    tc.body().
+        repeat(ROUNDS).expectRate(serverPort, direction, eventType, minPerSecond).body().
+            expect(Ping.class, ANY_PING, serverPort, IN).
+            expect(Pong.class, ANY_PONG, serverPort, OUT).
+        end();
+    return tc.check();
+  }
+
+  private boolean defaultActionPingRate(double minPerSecond) {
+    TestContext<Server> tc = newTestContext(SERVER_DELAY_MS);
+    Positive<PingPongPort> serverPort = serverPort(tc);
+    // pings are not expected but are still counted
+    tc.setDefaultAction(Ping.class, Action.HANDLE).body().
+        repeat(ROUNDS).expectRate(serverPort, IN, Ping.class, minPerSecond).body().
+            expect(Pong.class, ANY_PONG, serverPort, OUT).
+        end();
+    return tc.check();
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import com.google.common.base.Predicate;
+import org.junit.Test;
+import se.sics.kompics.Scheduler;
+import se.sics.kompics.testing.pingpong.Ping;
+import se.sics.kompics.testing.pingpong.Pong;
+import se.sics.kompics.testing.pingpong.Server;
+import se.sics.kompics.testing.scheduler.CallingThreadScheduler;
+import se.sics.kompics.testing.scheduler.WorkerPoolScheduler;
+
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import static se.sics.kompics.testing.Direction.IN;
+import static se.sics.kompics.testing.Direction.OUT;
+import static se.sics.kompics.testing.pingpong.ClientServer.ANY_PING;
+import static se.sics.kompics.testing.pingpong.ClientServer.ANY_PONG;
+import static se.sics.kompics.testing.pingpong.ClientServer.ROUNDS;
+import static se.sics.kompics.testing.pingpong.ClientServer.newTestContext;
+import static se.sics.kompics.testing.pingpong.ClientServer.serverPort;
+
+public class SchedulerTest {
+
+  @Test
+  public void workerPoolTest() {
+    assert pingPong(new WorkerPoolScheduler(4), 4, new Predicate<Thread>() {
+      @Override
+      public boolean apply(Thread thread) {
+        return thread.getName().startsWith("kompics-worker-") && thread.isDaemon();
+      }
+    });
+  }
+
+  @Test
+  public void workStealingTest() {
+    assert pingPong(WorkerPoolScheduler.workStealing(4), 4, new Predicate<Thread>() {
+      @Override
+      public boolean apply(Thread thread) {
+        return thread instanceof ForkJoinWorkerThread && thread.isDaemon();
+      }
+    });
+  }
+
+  @Test
+  public void callingThreadTest() {
+    final Thread caller = Thread.currentThread();
+    assert pingPong(new CallingThreadScheduler(), 1, new Predicate<Thread>() {
+      @Override
+      public boolean apply(Thread thread) {
+        return thread == caller;
+      }
+    });
+  }
+
+  @Test
+  public void failedInspectionTest() {
+    // the inspected server handled pings on a worker, not on the caller
+    final Thread caller = Thread.currentThread();
+    assert !pingPong(new WorkerPoolScheduler(1), 1, new Predicate<Thread>() {
+      @Override
+      public boolean apply(Thread thread) {
+        return thread == caller;
+      }
+    });
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void noWorkersTest() {
+    WorkerPoolScheduler.workStealing(0);
+  }
+
+  @Test
+  public void singleWorkerTest() {
+    assert pingPong(new WorkerPoolScheduler(1), 1, new Predicate<Thread>() {
+      @Override
+      public boolean apply(Thread thread) {
+        return thread.getName().startsWith("kompics-worker-");
+      }
+    });
+  }
+
+  // inspect waits for the server to be idle before checking how many pings it handled and
+  // which of at most maxThreads threads ran its handler
+  private boolean pingPong(Scheduler scheduler, final int maxThreads, final Predicate<Thread> expectedThread) {
+    TestContext<Server> tc = newTestContext(scheduler);
+    tc.body().
+        repeat(ROUNDS).body().
+            expect(Ping.class, ANY_PING, serverPort(tc), IN).
+            expect(Pong.class, ANY_PONG, serverPort(tc), OUT).
+        end().
+        inspect(new Predicate<Server>() {
+          @Override
+          public boolean apply(Server server) {
+            if (server.handledPings.get() != ROUNDS) {
+              return false;
+            }
+            synchronized (server.handlerThreads) {
+              if (server.handlerThreads.isEmpty() || server.handlerThreads.size() > maxThreads) {
+                return false;
+              }
+              for (Thread thread : server.handlerThreads) {
+                if (!expectedThread.apply(thread)) {
+                  return false;
+                }
+              }
+              return true;
+            }
+          }
+        });
+    return tc.check();
+  }
+}
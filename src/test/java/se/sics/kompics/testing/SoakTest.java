@@ -0,0 +1,116 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import org.junit.Test;
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.Positive;
+import se.sics.kompics.testing.pingpong.Ping;
+import se.sics.kompics.testing.pingpong.PingPongPort;
+import se.sics.kompics.testing.pingpong.Pong;
+import se.sics.kompics.testing.pingpong.Server;
+
+import static org.junit.Assert.assertEquals;
+import static se.sics.kompics.testing.Direction.IN;
+import static se.sics.kompics.testing.Direction.OUT;
+import static se.sics.kompics.testing.pingpong.ClientServer.ANY_PING;
+import static se.sics.kompics.testing.pingpong.ClientServer.ANY_PONG;
+import static se.sics.kompics.testing.pingpong.ClientServer.newTestContext;
+import static se.sics.kompics.testing.pingpong.ClientServer.serverPort;
+
+public class SoakTest {
+
+  private static final int SOAK_PINGS = 5000;
+
+  @Test
+  public void soakTest() {
+    TestContext<Server> tc = newTestContext(0, SOAK_PINGS);
+    Positive<PingPongPort> serverPort = serverPort(tc);
+    tc.setSoakMode(8).measureLatency(Ping.class, Pong.class).body().
+        repeat().body().
+            expect(Ping.class, ANY_PING, serverPort, IN).
+            expect(Pong.class, ANY_PONG, serverPort, OUT).
+        end();
+
+    assert tc.check();
+    // the trace keeps its capacity and every ping was answered, none is left pending
+    FlightRecorder recorder = tc.getFlightRecorder();
+    assert recorder.recorded() >= 2 * SOAK_PINGS;
+    assertEquals(8, recorder.size());
+    assertEquals(SOAK_PINGS, tc.getLatencyHistogram(serverPort, Ping.class).getCount());
+    assertEquals(0, tc.getUnansweredRequests(serverPort, Ping.class));
+  }
+
+  @Test
+  public void boundedPendingTest() {
+    int maxPending = 16;
+    TestContext<Server> tc = newTestContext(0, SOAK_PINGS);
+    Positive<PingPongPort> serverPort = serverPort(tc);
+    // pings are never answered, only the most recent ones are kept waiting
+    tc.setSoakMode(8).measureLatency(Ping.class, Unanswered.class).setMaxPendingRequests(maxPending).body().
+        repeat().body().
+            expect(Ping.class, ANY_PING, serverPort, IN).
+            expect(Pong.class, ANY_PONG, serverPort, OUT).
+        end();
+
+    assert tc.check();
+    assertEquals(SOAK_PINGS - maxPending, tc.getUnansweredRequests(serverPort, Ping.class));
+    assertEquals(8, tc.getFlightRecorder().size());
+  }
+
+  @Test
+  public void boundedTraceTest() {
+    int pings = 500;
+    TestContext<Server> tc = newTestContext(0, pings);
+    Positive<PingPongPort> serverPort = serverPort(tc);
+    tc.setSoakMode(8).body().
+        repeat(pings).body().
+            expect(Ping.class, ANY_PING, serverPort, IN).
+            expect(Pong.class, ANY_PONG, serverPort, OUT).
+        end();
+
+    assert tc.check();
+    // only the most recent steps are retained however long the test runs
+    FlightRecorder recorder = tc.getFlightRecorder();
+    assert recorder.recorded() >= 2 * pings;
+    assert recorder.size() == 8;
+  }
+
+  @Test
+  public void failedSoakTest() {
+    TestContext<Server> tc = newTestContext(0);
+    Positive<PingPongPort> serverPort = serverPort(tc);
+    tc.setSoakMode(8).body().
+        repeat().body().
+            expect(Ping.class, ANY_PING, serverPort, IN).
+            expect(Ping.class, ANY_PING, serverPort, IN).
+        end();
+
+    assert !tc.check();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void emptyTraceTest() {
+    newTestContext(0).setSoakMode(0);
+  }
+
+  private static class Unanswered implements KompicsEvent { }
+}
@@ -108,6 +108,100 @@ public class UnorderedEventsTest {
     assert tc.check();
   }
 
+  @Test
+  public void keyedUnorderedTest() {
+    connectTimers();
+
+    tc.addKeyExtractor(Pong.class, new Function<Pong, Integer>() {
+      @Override
+      public Integer apply(Pong pong) {
+        return pong.count;
+      }
+    }).setDefaultAction(Ping.class, new Function<Ping, Action>() {
+         @Override
+         public Action apply(Ping ping) {
+           return ping.count == 0? Action.HANDLE : Action.DROP;
+         }
+    }).body();
+
+    tc.repeat(10).body().
+       trigger(ping, pingerPort.getPair()).
+       expect(ping, pingerPort, OUT).
+       unordered().
+            expect(pong1, pingerPort, IN).
+            expect(pong2, pingerPort, IN).
+            expect(pong3, pingerPort, IN).
+       end().
+    end();
+
+    assert tc.check();
+  }
+
+  @Test
+  public void largeKeyedUnorderedTest() {
+    tc.addKeyExtractor(Pong.class, new Function<Pong, Integer>() {
+      @Override
+      public Integer apply(Pong pong) {
+        return pong.count;
+      }
+    });
+
+    assert largeUnorderedGroup(10000);
+  }
+
+  @Test
+  public void largeUnorderedTest() {
+    // without a key extractor each pong is compared with every expected pong
+    assert largeUnorderedGroup(1000);
+  }
+
+  // pongs are received in the reverse order of the expected ones
+  private boolean largeUnorderedGroup(int size) {
+    Positive<PingPongPort> pongerPort = ponger1.getPositive(PingPongPort.class);
+    tc.setDefaultAction(Ping.class, Action.DROP).body();
+    for (int i = 0; i < size; i++) {
+      tc.trigger(new Pong(i), pongerPort.getPair());
+    }
+
+    tc.unordered();
+    for (int i = size - 1; i >= 0; i--) {
+      tc.expect(new Pong(i), pingerPort, IN);
+    }
+    tc.end();
+
+    return tc.check();
+  }
+
+  @Test
+  public void overlappingPredicatesTest() {
+    connectTimers();
+
+    tc.setDefaultAction(Ping.class, new Function<Ping, Action>() {
+         @Override
+         public Action apply(Ping ping) {
+           return ping.count == 0? Action.HANDLE : Action.DROP;
+         }
+    }).body();
+
+    // any pong may take the first spec, pong3 only matches the first spec
+    tc.repeat(10).body().
+       trigger(ping, pingerPort.getPair()).
+       expect(ping, pingerPort, OUT).
+       unordered().
+            expect(Pong.class, new Predicate<Pong>() {
+              @Override
+              public boolean apply(Pong pong) {
+                return pong.count > 0;
+              }
+            }, pingerPort, IN).
+            expect(Pong.class, predicateForPong(1), pingerPort, IN).
+            expect(Pong.class, predicateForPong(2), pingerPort, IN).
+       end().
+    end();
+
+    assert tc.check();
+  }
+
   private ScheduleTimeout st = new ScheduleTimeout(500);
   private RandomTimeout timeout = new RandomTimeout(st);
 
@@ -0,0 +1,146 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing;
+
+import com.google.common.base.Predicate;
+import org.junit.Test;
+import se.sics.kompics.Component;
+import se.sics.kompics.*;
+import se.sics.kompics.timer.CancelPeriodicTimeout;
+import se.sics.kompics.timer.SchedulePeriodicTimeout;
+import se.sics.kompics.timer.ScheduleTimeout;
+import se.sics.kompics.timer.Timeout;
+import se.sics.kompics.timer.Timer;
+
+import static junit.framework.Assert.assertEquals;
+import static se.sics.kompics.testing.Direction.*;
+
+public class VirtualTimerTest {
+
+  private static final long DELAY = 30000;
+  private static final int TICKS = 5;
+
+  private TestContext<Sleeper> tc = TestContext.newTestContext(Sleeper.class, Init.NONE);
+  private Component sleeper = tc.getComponentUnderTest();
+  private Component timer = tc.createVirtualTimer();
+
+  @Test
+  public void timeoutTest() {
+    tc.connect(sleeper.getNegative(Timer.class), timer.getPositive(Timer.class));
+    tc.setDefaultAction(SchedulePeriodicTimeout.class, Action.DROP).
+       body().
+       expect(ScheduleTimeout.class, any(ScheduleTimeout.class), sleeper.getNegative(Timer.class), OUT).
+       expect(WakeUp.class, any(WakeUp.class), sleeper.getNegative(Timer.class), IN).
+       expect(Woke.class, any(Woke.class), sleeper.getPositive(SleepPort.class), OUT);
+
+    long start = System.currentTimeMillis();
+    assert tc.check();
+    assert System.currentTimeMillis() - start < DELAY;
+    assertEquals(DELAY, tc.getVirtualTime());
+  }
+
+  @Test
+  public void periodicTimeoutTest() {
+    tc.connect(sleeper.getNegative(Timer.class), timer.getPositive(Timer.class));
+    tc.body().
+       expect(ScheduleTimeout.class, any(ScheduleTimeout.class), sleeper.getNegative(Timer.class), OUT).
+       expect(WakeUp.class, any(WakeUp.class), sleeper.getNegative(Timer.class), IN).
+       expect(SchedulePeriodicTimeout.class, any(SchedulePeriodicTimeout.class), sleeper.getNegative(Timer.class), OUT).
+       expect(Woke.class, any(Woke.class), sleeper.getPositive(SleepPort.class), OUT).
+       repeat(TICKS).body().
+           expect(Tick.class, any(Tick.class), sleeper.getNegative(Timer.class), IN).
+       end().
+       expect(CancelPeriodicTimeout.class, any(CancelPeriodicTimeout.class), sleeper.getNegative(Timer.class), OUT);
+
+    assert tc.check();
+    assertEquals(DELAY + TICKS * DELAY, tc.getVirtualTime());
+  }
+
+  private static <E extends KompicsEvent> Predicate<E> any(Class<E> eventType) {
+    return new Predicate<E>() {
+      @Override
+      public boolean apply(E event) {
+        return true;
+      }
+    };
+  }
+
+  public static class Sleeper extends ComponentDefinition {
+    Positive<Timer> timerPort = requires(Timer.class);
+    Negative<SleepPort> sleepPort = provides(SleepPort.class);
+    SchedulePeriodicTimeout periodic;
+    int ticks = 0;
+
+    Handler<Start> startHandler = new Handler<Start>() {
+      @Override
+      public void handle(Start event) {
+        ScheduleTimeout st = new ScheduleTimeout(DELAY);
+        st.setTimeoutEvent(new WakeUp(st));
+        trigger(st, timerPort);
+      }
+    };
+
+    Handler<WakeUp> wakeUpHandler = new Handler<WakeUp>() {
+      @Override
+      public void handle(WakeUp event) {
+        periodic = new SchedulePeriodicTimeout(DELAY, DELAY);
+        periodic.setTimeoutEvent(new Tick(periodic));
+        trigger(periodic, timerPort);
+        trigger(new Woke(), sleepPort);
+      }
+    };
+
+    Handler<Tick> tickHandler = new Handler<Tick>() {
+      @Override
+      public void handle(Tick event) {
+        if (++ticks == TICKS) {
+          trigger(new CancelPeriodicTimeout(event.getTimeoutId()), timerPort);
+        }
+      }
+    };
+
+    {
+      subscribe(startHandler, control);
+      subscribe(wakeUpHandler, timerPort);
+      subscribe(tickHandler, timerPort);
+    }
+  }
+
+  public static class SleepPort extends PortType {
+    {
+      indication(Woke.class);
+    }
+  }
+
+  static class Woke implements KompicsEvent { }
+
+  static class WakeUp extends Timeout {
+    WakeUp(ScheduleTimeout st) {
+      super(st);
+    }
+  }
+
+  static class Tick extends Timeout {
+    Tick(SchedulePeriodicTimeout st) {
+      super(st);
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing.pingpong;
+
+import se.sics.kompics.ComponentDefinition;
+import se.sics.kompics.Handler;
+import se.sics.kompics.Positive;
+import se.sics.kompics.Start;
+
+// sends pings one after the other, the next once the pong of the previous one arrives
+public class Client extends ComponentDefinition {
+  private Positive<PingPongPort> ppPort = requires(PingPongPort.class);
+  private final int pings;
+
+  public Client(ClientInit init) {
+    pings = init.pings;
+  }
+
+  private Handler<Start> startHandler = new Handler<Start>() {
+    @Override
+    public void handle(Start event) {
+      if (pings > 0) {
+        trigger(new Ping(1), ppPort);
+      }
+    }
+  };
+
+  private Handler<Pong> pongHandler = new Handler<Pong>() {
+    @Override
+    public void handle(Pong pong) {
+      if (pong.count < pings) {
+        trigger(new Ping(pong.count + 1), ppPort);
+      }
+    }
+  };
+
+  {
+    subscribe(startHandler, control);
+    subscribe(pongHandler, ppPort);
+  }
+}
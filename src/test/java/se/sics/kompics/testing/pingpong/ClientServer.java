@@ -0,0 +1,59 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing.pingpong;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import se.sics.kompics.Component;
+import se.sics.kompics.Positive;
+import se.sics.kompics.Scheduler;
+import se.sics.kompics.testing.TestContext;
+
+// test contexts of a server under test and a client sending it pings
+public class ClientServer {
+
+  // pings sent by the client unless specified
+  public static final int ROUNDS = 20;
+  public static final Predicate<Ping> ANY_PING = Predicates.alwaysTrue();
+  public static final Predicate<Pong> ANY_PONG = Predicates.alwaysTrue();
+
+  public static TestContext<Server> newTestContext(long delayMS) {
+    return newTestContext(delayMS, ROUNDS);
+  }
+
+  public static TestContext<Server> newTestContext(long delayMS, int pings) {
+    return connectClient(TestContext.newTestContext(Server.class, new ServerInit(delayMS)), pings);
+  }
+
+  public static TestContext<Server> newTestContext(Scheduler scheduler) {
+    return connectClient(TestContext.newTestContext(Server.class, new ServerInit(0), scheduler), ROUNDS);
+  }
+
+  public static Positive<PingPongPort> serverPort(TestContext<Server> tc) {
+    return tc.getComponentUnderTest().getPositive(PingPongPort.class);
+  }
+
+  private static TestContext<Server> connectClient(TestContext<Server> tc, int pings) {
+    Component client = tc.create(Client.class, new ClientInit(pings));
+    tc.connect(serverPort(tc), client.getNegative(PingPongPort.class));
+    return tc;
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * This file is part of the Kompics Testing runtime.
+ *
+ * Copyright (C) 2017 Swedish Institute of Computer Science (SICS)
+ * Copyright (C) 2017 Royal Institute of Technology (KTH)
+ *
+ * Kompics is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.kompics.testing.pingpong;
+
+import se.sics.kompics.ComponentDefinition;
+import se.sics.kompics.Handler;
+import se.sics.kompics.Negative;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// answers each ping with a pong after a delay
+public class Server extends ComponentDefinition {
+  private Negative<PingPongPort> ppPort = provides(PingPongPort.class);
+  private final long delayMS;
+
+  // threads that handled pings, read by the test once the server is idle
+  public final Set<Thread> handlerThreads = Collections.synchronizedSet(new HashSet<Thread>());
+  public final AtomicInteger handledPings = new AtomicInteger();
+
+  public Server(ServerInit init) {
+    delayMS = init.delayMS;
+  }
+
+  private Handler<Ping> pingHandler = new Handler<Ping>() {
+    @Override
+    public void handle(Ping ping) {
+      handlerThreads.add(Thread.currentThread());
+      try {
+        Thread.sleep(delayMS);
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+      }
+      trigger(new Pong(ping.count), ppPort);
+      handledPings.incrementAndGet();
+    }
+  };
+
+  {
+    subscribe(pingHandler, ppPort);
+  }
+}